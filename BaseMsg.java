@@ -1,22 +1,27 @@
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  * Class which handles messages except handshake, bitfield and piece messages
  */
 public class BaseMsg {
+    //Shared instances of the messages without payload, indexed by message type
+    private static final BaseMsg[] CONTROL_MESSAGES = new BaseMsg[MsgConstants.MESSAGE_TYPE_COUNT];
     //Type of message
-    private String type;
-    //Length of the message
-    private String length;
+    private byte type;
     //The length of data in the message
     private int dataLength = MsgConstants.MESSAGE_TYPE;
-    //Type of message in bytes
-    private byte[] typeInBytes = null;
-    //Length of the message in bytes
-    private byte[] lengthInBytes = null;
     //The content of the message
     private byte[] payload = null;
 
+    static {
+        for (int i = 0; i < MsgConstants.MESSAGE_TYPE_COUNT; i++) {
+            byte messageType = (byte) (MsgConstants.MESSAGE_CHOKE + i);
+            if (isControlType(messageType)) {
+                CONTROL_MESSAGES[i] = new BaseMsg(messageType);
+            }
+        }
+    }
+
     /**
      * Empty constructor to create message object
      */
@@ -27,11 +32,9 @@ public class BaseMsg {
      * Constructor to create message object based on message type
      * @param messageType - type of the message
      */
-    public BaseMsg(String messageType) {
+    public BaseMsg(byte messageType) {
         try {
-            if (messageType == MsgConstants.MESSAGE_INTERESTED || messageType == MsgConstants.MESSAGE_NOT_INTERESTED ||
-                    messageType == MsgConstants.MESSAGE_CHOKE || messageType == MsgConstants.MESSAGE_UNCHOKE
-                    || messageType == MsgConstants.MESSAGE_DOWNLOADED) {
+            if (isControlType(messageType)) {
                 setMessageLength(1);
                 setMessageType(messageType);
                 this.payload = null;
@@ -49,19 +52,13 @@ public class BaseMsg {
      * @param messageType - type of the message
      * @param payload - message payload
      */
-    public BaseMsg(String messageType, byte[] payload) {
+    public BaseMsg(byte messageType, byte[] payload) {
         try {
             if (payload != null) {
                 setMessageLength(payload.length + 1);
-                if (lengthInBytes.length > MsgConstants.MESSAGE_LENGTH) {
-                    logAndShowInConsole("Error Occurred while initialzing Message constructor");
-                    throw new Exception("Message Constructor - Message Length is too large");
-                }
                 setPayload(payload);
             } else {
-                if (messageType == MsgConstants.MESSAGE_INTERESTED || messageType == MsgConstants.MESSAGE_NOT_INTERESTED
-                        || messageType == MsgConstants.MESSAGE_CHOKE || messageType == MsgConstants.MESSAGE_UNCHOKE
-                        || messageType == MsgConstants.MESSAGE_DOWNLOADED) {
+                if (isControlType(messageType)) {
                     setMessageLength(1);
                     this.payload = null;
                 } else {
@@ -69,63 +66,67 @@ public class BaseMsg {
                     throw new Exception("Message Constructor - Message Payload should not be null");
                 }
             }
-            setMessageType(messageType);
-            if (typeInBytes.length > MsgConstants.MESSAGE_TYPE) {
+            if (!isValidType(messageType)) {
                 logAndShowInConsole("Error Occurred while initialzing Message constructor");
-                throw new Exception("Message Constructor - Message Type length is too large");
+                throw new Exception("Message Constructor - Message Type is invalid");
             }
+            setMessageType(messageType);
         } catch (Exception e) {
             logAndShowInConsole("Error Occurred while initialzing Message constructor - " + e.getMessage());
         }
     }
 
     /**
-     * This method is used to set message type and message type in bytes with message type received in params
-     * @param messageType - type of message to be set
+     * This method returns the shared instance of a message without payload. The instance must not be modified.
+     * @param messageType - type of the message
+     * @return message instance
      */
-    public void setMessageType(String messageType) {
-        type = messageType.trim();
-        try {
-            typeInBytes = messageType.getBytes(MsgConstants.DEFAULT_CHARSET);
-        } catch (UnsupportedEncodingException e) {
-            logAndShowInConsole(e.getMessage());
-            e.printStackTrace();
+    public static BaseMsg controlMessage(byte messageType) {
+        return CONTROL_MESSAGES[messageType - MsgConstants.MESSAGE_CHOKE];
+    }
+
+    /**
+     * This method is used to check if messages of a type carry no payload
+     * @param messageType - type of the message
+     * @return true - message has no payload; false - message has a payload
+     */
+    public static boolean isControlType(byte messageType) {
+        switch (messageType) {
+            case MsgConstants.MESSAGE_CHOKE:
+            case MsgConstants.MESSAGE_UNCHOKE:
+            case MsgConstants.MESSAGE_INTERESTED:
+            case MsgConstants.MESSAGE_NOT_INTERESTED:
+            case MsgConstants.MESSAGE_DOWNLOADED:
+                return true;
+            default:
+                return false;
         }
     }
 
     /**
-     * This method is used to set message length, data length and message length in bytes with message length received in params
-     * @param messageLength - length of message to be set
+     * This method is used to check if a message type is known
+     * @param messageType - type of the message
+     * @return true - valid type; false - unknown type
      */
-    public void setMessageLength(int messageLength) {
-        dataLength = messageLength;
-        length = ((Integer) messageLength).toString();
-        lengthInBytes = PeerUtils.integerToBytes(messageLength);
+    public static boolean isValidType(byte messageType) {
+        return messageType >= MsgConstants.MESSAGE_CHOKE
+                && messageType < MsgConstants.MESSAGE_CHOKE + MsgConstants.MESSAGE_TYPE_COUNT;
     }
 
     /**
-     * This method is used to set message length, data length and message length in bytes with message length received in params
-     * @param len - length of message to be set
+     * This method is used to set message type
+     * @param messageType - type of message to be set
      */
-    public void setMessageLength(byte[] len) {
-
-        Integer l = PeerUtils.bytesToInteger(len);
-        this.length = l.toString();
-        this.lengthInBytes = len;
-        this.dataLength = l;
+    public void setMessageType(byte messageType) {
+        this.type = messageType;
     }
 
     /**
-     * This method is used to set message type and message type in bytes with message type received in params
-     * @param type - type of message to be set
+     * This method is used to set message length, which covers the type and the payload
+     * @param messageLength - length of message to be set
      */
-    public void setMessageType(byte[] type) {
-        try {
-            this.type = new String(type, MsgConstants.DEFAULT_CHARSET);
-            this.typeInBytes = type;
-        } catch (UnsupportedEncodingException e) {
-            logAndShowInConsole(e.toString());
-        }
+    public void setMessageLength(int messageLength) {
+        dataLength = messageLength;
     }
 
     /**
@@ -144,27 +145,12 @@ public class BaseMsg {
     public static byte[] convertMessageToByteArray(BaseMsg baseMsg) {
         byte[] messageInByteArray = null;
         try {
-            int messageType = Integer.parseInt(baseMsg.getType());
-            if (baseMsg.getLengthInBytes().length > MsgConstants.MESSAGE_LENGTH)
-                throw new Exception("Message Length is Invalid.");
-            else if (messageType < 0 || messageType > 8)
+            if (!isValidType(baseMsg.getType()))
                 throw new Exception("Message Type is Invalid.");
-            else if (baseMsg.getTypeInBytes() == null)
-                throw new Exception("Message Type is Invalid.");
-            else if (baseMsg.getLengthInBytes() == null)
-                throw new Exception("Message Length is Invalid.");
 
-            if (baseMsg.getPayload() != null) {
-                messageInByteArray = new byte[MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE + baseMsg.getPayload().length];
-                System.arraycopy(baseMsg.getLengthInBytes(), 0, messageInByteArray, 0, baseMsg.getLengthInBytes().length);
-                System.arraycopy(baseMsg.getTypeInBytes(), 0, messageInByteArray, MsgConstants.MESSAGE_LENGTH, MsgConstants.MESSAGE_TYPE);
-                System.arraycopy(baseMsg.getPayload(), 0, messageInByteArray,
-                        MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE, baseMsg.getPayload().length);
-            } else {
-                messageInByteArray = new byte[MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE];
-                System.arraycopy(baseMsg.getLengthInBytes(), 0, messageInByteArray, 0, baseMsg.getLengthInBytes().length);
-                System.arraycopy(baseMsg.getTypeInBytes(), 0, messageInByteArray, MsgConstants.MESSAGE_LENGTH, MsgConstants.MESSAGE_TYPE);
-            }
+            byte[] payload = baseMsg.getPayload();
+            messageInByteArray = new byte[MsgCodec.encodedLength(payload == null ? 0 : payload.length)];
+            MsgCodec.encode(messageInByteArray, 0, baseMsg.getType(), payload);
         } catch (Exception e) {
         }
 
@@ -177,35 +163,14 @@ public class BaseMsg {
      * @return message instance
      */
     public static BaseMsg convertByteArrayToMessage(byte[] message) {
-
-        BaseMsg msg = new BaseMsg();
-        byte[] msgLength = new byte[MsgConstants.MESSAGE_LENGTH];
-        byte[] msgType = new byte[MsgConstants.MESSAGE_TYPE];
-        byte[] payLoad = null;
-        int len;
-
+        BaseMsg msg;
         try {
             if (message == null)
                 throw new Exception("Invalid data.");
-            else if (message.length < MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE)
+            else if (message.length < MsgCodec.HEADER_LENGTH)
                 throw new Exception("Byte array length is too small...");
 
-
-            System.arraycopy(message, 0, msgLength, 0, MsgConstants.MESSAGE_LENGTH);
-            System.arraycopy(message, MsgConstants.MESSAGE_LENGTH, msgType, 0, MsgConstants.MESSAGE_TYPE);
-
-            msg.setMessageLength(msgLength);
-            msg.setMessageType(msgType);
-
-            len = PeerUtils.bytesToInteger(msgLength);
-
-            if (len > 1) {
-                payLoad = new byte[len - 1];
-                System.arraycopy(message, MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE, payLoad, 0, message.length - MsgConstants.MESSAGE_LENGTH - MsgConstants.MESSAGE_TYPE);
-                msg.setPayload(payLoad);
-            }
-
-            payLoad = null;
+            msg = MsgCodec.decode(ByteBuffer.wrap(message));
         } catch (Exception e) {
             LoggingHelper.logAndDisplay(e.toString());
             msg = null;
@@ -217,66 +182,10 @@ public class BaseMsg {
      * This method is used to get the type of message
      * @return type of message
      */
-    public String getType() {
+    public byte getType() {
         return type;
     }
 
-    /**
-     * This method is used to set the type of message
-     * @param type - type of message
-     */
-    public void setType(String type) {
-        this.type = type;
-    }
-
-    /**
-     * This method is used to get the length of message
-     * @return length of message
-     */
-    public String getLength() {
-        return length;
-    }
-
-    /**
-     * This method is used to set the length of message
-     * @param length - length of the message
-     */
-    public void setLength(String length) {
-        this.length = length;
-    }
-
-    /**
-     * This method is used to get the type of message in bytes
-     * @return type in bytes
-     */
-    public byte[] getTypeInBytes() {
-        return typeInBytes;
-    }
-
-    /**
-     * This method is used to set the type of message in bytes
-     * @param typeInBytes - type in bytes
-     */
-    public void setTypeInBytes(byte[] typeInBytes) {
-        this.typeInBytes = typeInBytes;
-    }
-
-    /**
-     * This method is used to get the length of message in bytes
-     * @return length of the message in bytes
-     */
-    public byte[] getLengthInBytes() {
-        return lengthInBytes;
-    }
-
-    /**
-     * This method is used to set the length of message in bytes
-     * @param lengthInBytes - length of the message in bytes
-     */
-    public void setLengthInBytes(byte[] lengthInBytes) {
-        this.lengthInBytes = lengthInBytes;
-    }
-
     /**
      * This method is used to get the content of message
      * @return content of message
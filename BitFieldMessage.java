@@ -1,14 +1,20 @@
-import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
 
 /**
  * Manages the bitfield message of peers.
+ * Pieces are kept as a packed bitset of long words. Piece i is stored in word i / 64 at bit 63 - i % 64, so each word
+ * written in big-endian order is exactly the wire encoding of its 64 pieces.
  */
 public class BitFieldMessage {
 
-    private FilePiece[] filePieces; // Array of file pieces.
+    private static final int PIECES_PER_WORD = 64; // Number of pieces stored in one word.
+
+    private long[] words; // Presence of the pieces, one bit per piece.
     private int numPieces; // Total number of file pieces.
+    private volatile int numPiecesPresent; // Number of pieces present, kept up to date on every change.
+    private byte[] encodedBitField; // Wire encoding of the bitfield, patched when a piece arrives.
 
     /**
      * Initializes the bitfield message based on configuration values.
@@ -17,92 +23,115 @@ public class BitFieldMessage {
         double fileSize = Double.parseDouble(String.valueOf(ConfigSettings.fileSize));
         double pieceSize = Double.parseDouble(String.valueOf(ConfigSettings.pieceSize));
         numPieces = (int) Math.ceil(fileSize / pieceSize);
-        filePieces = new FilePiece[numPieces];
+        words = new long[(numPieces + PIECES_PER_WORD - 1) / PIECES_PER_WORD];
+    }
 
-        for (int i = 0; i < numPieces; i++) {
-            filePieces[i] = new FilePiece();
-        }
+    /**
+     * @return The total number of file pieces.
+     */
+    public int getNumPieces() {
+        return numPieces;
     }
 
     /**
-     * @return The array of file pieces.
+     * Checks whether a piece is present.
+     *
+     * @param pieceIndex Index of the piece to check.
+     * @return true if the piece is present; otherwise, false.
      */
-    public FilePiece[] getFilePieces() {
-        return filePieces;
+    public boolean hasPiece(int pieceIndex) {
+        return (words[pieceIndex / PIECES_PER_WORD] & pieceMask(pieceIndex)) != 0;
     }
 
     /**
-     * Sets the array of file pieces.
+     * Marks a single piece as present, as announced by a HAVE message. Unknown or already present pieces are ignored.
      *
-     * @param filePieces Array of file pieces.
+     * @param pieceIndex Index of the piece.
+     * @return true if the piece was not present before; otherwise, false.
      */
-    public void setFilePieces(FilePiece[] filePieces) {
-        this.filePieces = filePieces;
+    public synchronized boolean setPiecePresent(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < numPieces && !hasPiece(pieceIndex)) {
+            markPiecePresent(pieceIndex);
+            return true;
+        }
+        return false;
     }
 
     /**
-     * @return The total number of file pieces.
+     * Marks a single piece as missing again, as when its stored content turns out to be corrupt.
+     *
+     * @param pieceIndex Index of the piece.
+     * @return true if the piece was present before; otherwise, false.
      */
-    public int getNumPieces() {
-        return numPieces;
+    public synchronized boolean clearPiece(int pieceIndex) {
+        if (pieceIndex >= 0 && pieceIndex < numPieces && hasPiece(pieceIndex)) {
+            words[pieceIndex / PIECES_PER_WORD] &= ~pieceMask(pieceIndex);
+            numPiecesPresent--;
+            if (encodedBitField != null) {
+                encodedBitField[pieceIndex / 8] &= (byte) ~(0x80 >>> (pieceIndex % 8));
+            }
+            return true;
+        }
+        return false;
     }
 
     /**
-     * Sets the total number of file pieces.
+     * Performs an action for every piece present, skipping a whole word of missing pieces at a time.
      *
-     * @param numPieces Total number of file pieces.
+     * @param action Action performed with the index of each present piece.
      */
-    public void setNumPieces(int numPieces) {
-        this.numPieces = numPieces;
+    public synchronized void forEachPiecePresent(IntConsumer action) {
+        for (int i = 0; i < words.length; i++) {
+            long present = words[i];
+            while (present != 0) {
+                int bit = Long.numberOfLeadingZeros(present);
+                action.accept(i * PIECES_PER_WORD + bit);
+                present &= ~(Long.MIN_VALUE >>> bit);
+            }
+        }
     }
 
     /**
      * Initializes the details of file pieces.
      *
-     * @param peerId ID of the peer where the piece is found.
      * @param hasFile Indicates whether the file piece is present or not.
      */
-    public void setPieceDetails(String peerId, int hasFile) {
-        for (FilePiece piece : filePieces) {
-            piece.setPresenceFlag(hasFile == 1 ? 1 : 0);
-            piece.setRetrievedFromPeerId(peerId);
-        }
+    public synchronized void setPieceDetails(int hasFile) {
+        Arrays.fill(words, hasFile == 1 ? -1L : 0L);
+        clearSpareBits();
+        numPiecesPresent = hasFile == 1 ? numPieces : 0;
+        encodedBitField = null;
     }
 
     /**
-     * Converts the bitfield message to a byte array.
+     * Converts the bitfield message to a byte array. The encoding is built once and then patched in place
+     * as pieces arrive, so the returned array is shared and must not be modified.
      *
      * @return Byte array representing the bitfield message.
      */
-    public byte[] getBytes() {
-        int s = numPieces / 8;
-        if (numPieces % 8 != 0)
-            s = s + 1;
-        byte[] iP = new byte[s];
-        int tempInt = 0;
-        int count = 0;
-        int Cnt;
-        for (Cnt = 1; Cnt <= numPieces; Cnt++) {
-            int tempP = filePieces[Cnt - 1].getPresenceFlag();
-            tempInt = tempInt << 1;
-            if (tempP == 1) {
-                tempInt = tempInt + 1;
-            } else
-                tempInt = tempInt + 0;
-
-            if (Cnt % 8 == 0 && Cnt != 0) {
-                iP[count] = (byte) tempInt;
-                count++;
-                tempInt = 0;
-            }
+    public synchronized byte[] getBytes() {
+        if (encodedBitField == null) {
+            encodedBitField = encode();
+        }
+        return encodedBitField;
+    }
 
+    /**
+     * Encodes the bitfield into its wire format a whole word at a time.
+     *
+     * @return Byte array representing the bitfield message.
+     */
+    private byte[] encode() {
+        byte[] bitField = new byte[(numPieces + 7) / 8];
+        ByteBuffer buffer = ByteBuffer.wrap(bitField);
+        int fullWords = bitField.length / Long.BYTES;
+        for (int i = 0; i < fullWords; i++) {
+            buffer.putLong(words[i]);
         }
-        if ((Cnt - 1) % 8 != 0) {
-            int tempShift = ((numPieces) - (numPieces / 8) * 8);
-            tempInt = tempInt << (8 - tempShift);
-            iP[count] = (byte) tempInt;
+        for (int i = fullWords * Long.BYTES; i < bitField.length; i++) {
+            bitField[i] = (byte) (words[fullWords] >>> (56 - 8 * (i % Long.BYTES)));
         }
-        return iP;
+        return bitField;
     }
 
     /**
@@ -113,20 +142,18 @@ public class BitFieldMessage {
      */
     public static BitFieldMessage decodeMessage(byte[] bitField) {
         BitFieldMessage bitFieldMessage = new BitFieldMessage();
-        for (int i = 0; i < bitField.length; i++) {
-            int count = 7;
-            while (count >= 0) {
-                int test = 1 << count;
-                if (i * 8 + (8 - count - 1) < bitFieldMessage.getNumPieces()) {
-                    if ((bitField[i] & (test)) != 0)
-                        bitFieldMessage.getFilePieces()[i * 8 + (8 - count - 1)].setPresenceFlag(1);
-                    else
-                        bitFieldMessage.getFilePieces()[i * 8 + (8 - count - 1)].setPresenceFlag(0);
-                }
-                count--;
-            }
+        long[] words = bitFieldMessage.words;
+        int length = Math.min(bitField.length, (bitFieldMessage.numPieces + 7) / 8);
+        ByteBuffer buffer = ByteBuffer.wrap(bitField, 0, length);
+        int fullWords = length / Long.BYTES;
+        for (int i = 0; i < fullWords; i++) {
+            words[i] = buffer.getLong();
         }
-
+        for (int i = fullWords * Long.BYTES; i < length; i++) {
+            words[fullWords] |= (bitField[i] & 0xFFL) << (56 - 8 * (i % Long.BYTES));
+        }
+        bitFieldMessage.clearSpareBits();
+        bitFieldMessage.numPiecesPresent = bitFieldMessage.countPiecesPresent();
         return bitFieldMessage;
     }
 
@@ -134,14 +161,14 @@ public class BitFieldMessage {
      * @return The number of pieces currently present.
      */
     public int getNumPiecesPresent() {
-        int presentCount = 0;
-        for (FilePiece piece : filePieces) {
-            if (piece.getPresenceFlag() == 1) {
-                presentCount++;
-            }
-        }
+        return numPiecesPresent;
+    }
 
-        return presentCount;
+    /**
+     * @return The number of pieces still missing.
+     */
+    public int getNumPiecesMissing() {
+        return numPieces - numPiecesPresent;
     }
 
     /**
@@ -150,15 +177,7 @@ public class BitFieldMessage {
      * @return true if download is complete; otherwise, false.
      */
     public boolean isFileDownloadComplete() {
-        boolean isFileDownloaded = true;
-        for (FilePiece filePiece : filePieces) {
-            if (filePiece.getPresenceFlag() == 0) {
-                isFileDownloaded = false;
-                break;
-            }
-        }
-
-        return isFileDownloaded;
+        return numPiecesPresent == numPieces;
     }
 
     /**
@@ -168,101 +187,95 @@ public class BitFieldMessage {
      * @return Index of the first interesting piece.
      */
     public synchronized int findInterestingPieceIndex(BitFieldMessage remoteBitField) {
-        int numPieces = remoteBitField.getNumPieces();
-        int interestingPiece = -1;
+        return findFirstMissingPiece(remoteBitField);
+    }
 
-        for (int i = 0; i < numPieces; i++) {
-            if (remoteBitField.getFilePieces()[i].getPresenceFlag() == 1
-                    && this.getFilePieces()[i].getPresenceFlag() == 0) {
-                interestingPiece = i;
-                break;
+    /**
+     * Marks a piece whose data has been written as present.
+     *
+     * @param peerID ID of the peer from which the piece, or its last block, is received.
+     * @param pieceIndex Index of the piece.
+     * @return true if the piece was new; false if it was already present.
+     */
+    public boolean markPieceReceived(String peerID, int pieceIndex) {
+        boolean downloadCompleted;
+        synchronized (this) {
+            if (hasPiece(pieceIndex)) {
+                logAndDisplay(peerID + " Piece already received");
+                return false;
             }
+            markPiecePresent(pieceIndex);
+            downloadCompleted = isFileDownloadComplete();
         }
+        peerProcess.piecePicker.piecePresent(pieceIndex);
+        logAndDisplay(peerProcess.currentPeerID + " has downloaded the PIECE " + pieceIndex
+                + " from Peer " + peerID + ". Now the number of pieces it has is "
+                + peerProcess.bitFieldMsg.getNumPiecesPresent());
 
-        return interestingPiece;
+        if (downloadCompleted) {
+            logAndDisplay(peerProcess.currentPeerID + " has DOWNLOADED the complete file.");
+        }
+        return true;
     }
 
     /**
-     * Finds the index of the first differing piece in a remote peer.
+     * Finds the first piece present in a remote peer and missing locally, comparing a whole word at a time.
      *
      * @param remoteBitField Bitfield of the remote peer.
-     * @return Index of the first differing piece.
+     * @return Index of the first such piece, or -1 if there is none.
      */
-    public synchronized int findFirstDiffPieceIndex(BitFieldMessage remoteBitField) {
-        int firstPieces = numPieces;
-        int secondPieces = remoteBitField.getNumPieces();
-        int pieceIndex = -1;
-
-        if (secondPieces >= firstPieces) {
-            for (int i = 0; i < firstPieces; i++) {
-                if (filePieces[i].getPresenceFlag() == 0 && remoteBitField.getFilePieces()[i].getPresenceFlag() == 1) {
-                    pieceIndex = i;
-                    break;
-                }
-            }
-        } else {
-            for (int i = 0; i < secondPieces; i++) {
-                if (filePieces[i].getPresenceFlag() == 0 && remoteBitField.getFilePieces()[i].getPresenceFlag() == 1) {
-                    pieceIndex = i;
-                    break;
-                }
+    private int findFirstMissingPiece(BitFieldMessage remoteBitField) {
+        int wordCount = Math.min(words.length, remoteBitField.words.length);
+        for (int i = 0; i < wordCount; i++) {
+            long missing = remoteBitField.words[i] & ~words[i];
+            if (missing != 0) {
+                int pieceIndex = i * PIECES_PER_WORD + Long.numberOfLeadingZeros(missing);
+                return pieceIndex < Math.min(numPieces, remoteBitField.numPieces) ? pieceIndex : -1;
             }
         }
-
-        return pieceIndex;
+        return -1;
     }
 
     /**
-     * Updates bitfield information based on received file pieces.
+     * Marks a piece as present, updating the counter and the cached encoding. Must be called while holding the lock.
      *
-     * @param peerID ID of the peer from which the piece is received.
-     * @param receivedPiece Received file piece.
+     * @param pieceIndex Index of the piece received.
      */
-    public void updateBitFieldInfo(String peerID, FilePiece receivedPiece) {
-        int pieceIndex = receivedPiece.getIndex();
-        try {
-            if (isPieceAlreadyPresent(pieceIndex)) {
-                logAndDisplay(peerID + " Piece already received");
-            } else {
-                String fileName = ConfigSettings.fileName;
-
-                File file = new File(peerProcess.currentPeerID, fileName);
-                int offSet = pieceIndex * ConfigSettings.pieceSize;
-                RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
-                byte[] pieceToWrite = receivedPiece.getData();
-                randomAccessFile.seek(offSet);
-                randomAccessFile.write(pieceToWrite);
+    private void markPiecePresent(int pieceIndex) {
+        words[pieceIndex / PIECES_PER_WORD] |= pieceMask(pieceIndex);
+        numPiecesPresent++;
+        if (encodedBitField != null) {
+            encodedBitField[pieceIndex / 8] |= (byte) (0x80 >>> (pieceIndex % 8));
+        }
+    }
 
-                filePieces[pieceIndex].setPresenceFlag(1);
-                filePieces[pieceIndex].setRetrievedFromPeerId(peerID);
-                randomAccessFile.close();
-                logAndDisplay(peerProcess.currentPeerID + " has downloaded the PIECE " + pieceIndex
-                        + " from Peer " + peerID + ". Now the number of pieces it has is "
-                        + peerProcess.bitFieldMsg.getNumPiecesPresent());
+    /**
+     * @return The number of bits set in the bitset.
+     */
+    private int countPiecesPresent() {
+        int presentCount = 0;
+        for (long word : words) {
+            presentCount += Long.bitCount(word);
+        }
+        return presentCount;
+    }
 
-                if (peerProcess.bitFieldMsg.isFileDownloadComplete()) {
-                    //update file download details
-                    peerProcess.remotePeerInfoMap.get(peerID).setIsInterested(0);
-                    peerProcess.remotePeerInfoMap.get(peerID).setIsComplete(1);
-                    peerProcess.remotePeerInfoMap.get(peerID).setIsChoked(0);
-                    peerProcess.remotePeerInfoMap.get(peerID).updatePeerDetails(peerProcess.currentPeerID, 1);
-                    logAndDisplay(peerProcess.currentPeerID + " has DOWNLOADED the complete file.");
-                }
-            }
-        } catch (IOException e) {
-            logAndDisplay(peerProcess.currentPeerID + " EROR in updating bitfield " + e.getMessage());
-            e.printStackTrace();
+    /**
+     * Clears the bits of the last word which do not belong to a piece.
+     */
+    private void clearSpareBits() {
+        int usedBits = numPieces % PIECES_PER_WORD;
+        if (usedBits != 0) {
+            words[words.length - 1] &= -1L << (PIECES_PER_WORD - usedBits);
         }
     }
 
     /**
-     * Checks whether a specific piece is already present.
-     *
-     * @param pieceIndex Index of the piece to check.
-     * @return true if the piece is present; otherwise, false.
+     * @param pieceIndex Index of a piece.
+     * @return Mask selecting the bit of the piece within its word.
      */
-    private boolean isPieceAlreadyPresent(int pieceIndex) {
-        return peerProcess.bitFieldMsg.getFilePieces()[pieceIndex].getPresenceFlag() == 1;
+    private static long pieceMask(int pieceIndex) {
+        return Long.MIN_VALUE >>> (pieceIndex % PIECES_PER_WORD);
     }
 
     /**
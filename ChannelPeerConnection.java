@@ -0,0 +1,441 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connection to a remote peer over a non-blocking socket channel served by a selector thread of PeerReactor.
+ * It performs the handshake, splits the received bytes into messages and queues writes
+ * which cannot be completed immediately.
+ * The data of PIECE messages is moved from the shared file to the socket with FileChannel.transferTo, so it never
+ * enters the Java heap.
+ */
+public class ChannelPeerConnection implements PeerConnection {
+
+    // Channel connected to the remote peer
+    private final SocketChannel channel;
+    // The type of connection established
+    private final int connType;
+    // The peerID of the current host
+    private final String ownPeerId;
+    // Selector loop serving the channel
+    private final PeerReactor.SelectorLoop selectorLoop;
+    // Registration of the channel with the selector
+    private volatile SelectionKey selectionKey;
+    // Buffers and file regions waiting to be written in order, guarded by itself
+    private final Queue<Object> writeQueue = new ArrayDeque<>();
+    // Splits the received bytes into the handshake and messages
+    private final FrameDecoder frameDecoder = new FrameDecoder();
+    // Reused to encode the header of outgoing messages, guarded by writeQueue
+    private final ByteBuffer headerBuffer = ByteBuffer.allocateDirect(MsgCodec.HEADER_LENGTH);
+    // Header and payload of an outgoing message written with one gathering write, guarded by writeQueue
+    private final ByteBuffer[] outgoingBuffers = new ByteBuffer[2];
+    // Details of the messages without payload received from the remote peer, reused for every such message
+    private MsgDetails[] controlMessageDetails;
+    // The peerID of the remote host, known after the handshake
+    private volatile String remotePeerId;
+    // The remote peer, known after the handshake
+    private volatile RemotePeerInfo remotePeerInfo;
+    // Message which could not be queued because the inbound queue of the peer was full
+    private MsgDetails pendingMessage;
+    // Indicates whether the connection has been closed
+    private volatile boolean closed;
+
+    /**
+     * Initializes a connection for a channel.
+     *
+     * @param channel        - non-blocking channel to the remote peer
+     * @param connectionType - type of connection established
+     * @param ownPeerId      - peerID of the current host
+     * @param selectorLoop   - selector loop serving the channel
+     */
+    public ChannelPeerConnection(SocketChannel channel, int connectionType, String ownPeerId, PeerReactor.SelectorLoop selectorLoop) {
+        this.channel = channel;
+        this.connType = connectionType;
+        this.ownPeerId = ownPeerId;
+        this.selectorLoop = selectorLoop;
+    }
+
+    /**
+     * @return channel connected to the remote peer
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return peerID of the remote host, null before the handshake is received
+     */
+    public String getRemotePeerId() {
+        return remotePeerId;
+    }
+
+    /**
+     * @return the remote peer, null before the handshake is received
+     */
+    public RemotePeerInfo getRemotePeerInfo() {
+        return remotePeerInfo;
+    }
+
+    /**
+     * This method is used to set the registration of the channel with the selector
+     *
+     * @param selectionKey - registration of the channel
+     */
+    public void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Writes the message directly when nothing is queued, otherwise queues it and lets the selector thread write it
+     * once the channel is writable.
+     */
+    @Override
+    public void send(byte[] message) throws IOException {
+        if (closed) {
+            throw new IOException("Connection to Peer " + remotePeerId + " is closed");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        synchronized (writeQueue) {
+            if (writeQueue.isEmpty()) {
+                channel.write(buffer);
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+            }
+            writeQueue.add(buffer);
+        }
+        selectorLoop.setInterest(selectionKey, SelectionKey.OP_WRITE, true);
+    }
+
+    /**
+     * Encodes the header into a reused buffer and writes it together with the payload. Only the part of a message
+     * which cannot be written immediately is copied into a queued buffer.
+     */
+    @Override
+    public void sendMessage(byte messageType, byte[] payload) throws IOException {
+        if (closed) {
+            throw new IOException("Connection to Peer " + remotePeerId + " is closed");
+        }
+        synchronized (writeQueue) {
+            headerBuffer.clear();
+            MsgCodec.encodeHeader(headerBuffer, messageType, payload == null ? 0 : payload.length);
+            headerBuffer.flip();
+            ByteBuffer payloadBuffer = payload == null ? null : ByteBuffer.wrap(payload);
+            if (writeQueue.isEmpty()) {
+                if (payloadBuffer == null) {
+                    channel.write(headerBuffer);
+                } else {
+                    outgoingBuffers[0] = headerBuffer;
+                    outgoingBuffers[1] = payloadBuffer;
+                    channel.write(outgoingBuffers);
+                    outgoingBuffers[1] = null;
+                }
+                if (!headerBuffer.hasRemaining() && (payloadBuffer == null || !payloadBuffer.hasRemaining())) {
+                    return;
+                }
+            }
+            ByteBuffer remainder = ByteBuffer.allocate(headerBuffer.remaining() + (payloadBuffer == null ? 0 : payloadBuffer.remaining()));
+            remainder.put(headerBuffer);
+            if (payloadBuffer != null) {
+                remainder.put(payloadBuffer);
+            }
+            remainder.flip();
+            writeQueue.add(remainder);
+        }
+        selectorLoop.setInterest(selectionKey, SelectionKey.OP_WRITE, true);
+    }
+
+    /**
+     * Writes the header and the prefix with one gathering write and transfers the data of the piece from the file
+     * behind them. The part which cannot be written immediately is queued, the data of the piece as a file region
+     * which is transferred once the channel is writable.
+     */
+    @Override
+    public void sendFileMessage(byte messageType, byte[] prefix, PieceStore pieceStore, int pieceIndex, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Connection to Peer " + remotePeerId + " is closed");
+        }
+        FileRegion fileRegion = new FileRegion(pieceStore, pieceIndex, offset, length);
+        synchronized (writeQueue) {
+            headerBuffer.clear();
+            MsgCodec.encodeHeader(headerBuffer, messageType, prefix.length + length);
+            headerBuffer.flip();
+            ByteBuffer prefixBuffer = ByteBuffer.wrap(prefix);
+            if (writeQueue.isEmpty()) {
+                outgoingBuffers[0] = headerBuffer;
+                outgoingBuffers[1] = prefixBuffer;
+                channel.write(outgoingBuffers);
+                outgoingBuffers[1] = null;
+                if (!headerBuffer.hasRemaining() && !prefixBuffer.hasRemaining() && fileRegion.writeTo(channel)) {
+                    return;
+                }
+            }
+            if (headerBuffer.hasRemaining() || prefixBuffer.hasRemaining()) {
+                ByteBuffer remainder = ByteBuffer.allocate(headerBuffer.remaining() + prefixBuffer.remaining());
+                remainder.put(headerBuffer);
+                remainder.put(prefixBuffer);
+                remainder.flip();
+                writeQueue.add(remainder);
+            }
+            writeQueue.add(fileRegion);
+        }
+        selectorLoop.setInterest(selectionKey, SelectionKey.OP_WRITE, true);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        SelectionKey key = selectionKey;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Waits for the selector thread to write the queued messages.
+     */
+    @Override
+    public boolean closeGracefully(long timeoutMillis) {
+        boolean drained = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            synchronized (writeQueue) {
+                long remaining;
+                while (!writeQueue.isEmpty() && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+                    writeQueue.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                }
+                drained = writeQueue.isEmpty() && !closed;
+            }
+            if (drained) {
+                channel.shutdownOutput();
+            }
+        } catch (InterruptedException | IOException e) {
+            drained = false;
+        }
+        close();
+        return drained;
+    }
+
+    /**
+     * @return true if the connection has been closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * This method is called by the selector thread once an outbound connection is established. It sends the handshake.
+     *
+     * @throws IOException if the connection could not be established
+     */
+    void onConnected() throws IOException {
+        channel.finishConnect();
+        sendHandshake();
+        logAndShowInConsole(ownPeerId + " HANDSHAKE has been sent");
+    }
+
+    /**
+     * This method is called by the selector thread when the channel is writable. It writes the queued messages.
+     *
+     * @throws IOException if the connection is broken
+     */
+    void onWritable() throws IOException {
+        synchronized (writeQueue) {
+            while (!writeQueue.isEmpty()) {
+                Object pendingWrite = writeQueue.peek();
+                if (pendingWrite instanceof ByteBuffer) {
+                    ByteBuffer buffer = (ByteBuffer) pendingWrite;
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                } else if (!((FileRegion) pendingWrite).writeTo(channel)) {
+                    return;
+                }
+                writeQueue.poll();
+            }
+            //wakes a thread closing the connection once everything queued is written
+            writeQueue.notifyAll();
+        }
+        selectorLoop.setInterest(selectionKey, SelectionKey.OP_WRITE, false);
+    }
+
+    /**
+     * This method is called by the selector thread when the channel is readable. It reads the available bytes
+     * and processes every complete handshake or message.
+     *
+     * @throws IOException if the connection is broken or the remote peer closed it
+     */
+    void onReadable() throws IOException {
+        if (frameDecoder.readFrom(channel) == -1) {
+            throw new IOException("Connection closed by Peer " + remotePeerId);
+        }
+        processReceivedBytes();
+    }
+
+    /**
+     * This method is called by the selector thread to retry queuing a message which did not fit into the inbound queue.
+     *
+     * @return true if the message was queued and reading resumed
+     * @throws IOException if the received bytes are invalid
+     */
+    boolean retryPendingMessage() throws IOException {
+        if (!peerProcess.inboundMsgPipeline.offerMessage(pendingMessage)) {
+            return false;
+        }
+        pendingMessage = null;
+        selectorLoop.setInterest(selectionKey, SelectionKey.OP_READ, true);
+        processReceivedBytes();
+        return true;
+    }
+
+    /**
+     * Processes the complete handshake and messages in the receive buffer, leaving partial ones for the next read.
+     *
+     * @throws IOException if the received bytes are invalid
+     */
+    private void processReceivedBytes() throws IOException {
+        while (pendingMessage == null) {
+            if (remotePeerId == null) {
+                if (!frameDecoder.hasCompleteHandshake())
+                    break;
+                onHandshake(frameDecoder.decodeHandshake());
+                continue;
+            }
+
+            if (!frameDecoder.hasCompleteFrame())
+                break;
+            onMessage(frameDecoder.decodeFrame());
+        }
+    }
+
+    /**
+     * Validates the received handshake, registers the connection and replies as the blocking PeerMessageHandler does.
+     *
+     * @param handshakeMessage - the handshake received
+     * @throws IOException if the handshake is invalid
+     */
+    private void onHandshake(HandshakeMsg handshakeMessage) throws IOException {
+        if (handshakeMessage == null || !MsgConstants.HANDSHAKE_HEADER.equals(handshakeMessage.getHeader()))
+            throw new IOException("Invalid HANDSHAKE message received");
+        String peerId = handshakeMessage.getPeerID();
+        RemotePeerInfo remotePeerInfo = peerProcess.peerTable.findPeer(peerId);
+        if (remotePeerInfo == null)
+            throw new IOException("HANDSHAKE received from unknown Peer " + peerId);
+        remotePeerId = peerId;
+        this.remotePeerInfo = remotePeerInfo;
+        controlMessageDetails = MsgCodec.newControlMessageDetails(remotePeerInfo);
+        remotePeerInfo.setSupportsBlocks(ConfigSettings.blockSize > 0 && handshakeMessage.supportsBlockRequests());
+
+        if (connType == MsgConstants.ACTIVE_CONNECTION) {
+            logAndShowInConsole(ownPeerId + " makes a connection to Peer " + remotePeerId);
+            logAndShowInConsole(ownPeerId + " Received a HANDSHAKE message from Peer " + remotePeerId);
+            peerProcess.peerTable.setConnection(remotePeerInfo.getIndex(), this);
+            sendMessage(MsgConstants.MESSAGE_BITFIELD, peerProcess.bitFieldMsg.getBytes());
+            remotePeerInfo.setPeerState(8);
+        } else {
+            logAndShowInConsole(ownPeerId + " is connected from Peer " + remotePeerId);
+            logAndShowInConsole(ownPeerId + " Received a HANDSHAKE message from Peer " + remotePeerId);
+            peerProcess.peerTable.setConnection(remotePeerInfo.getIndex(), this);
+            sendHandshake();
+            logAndShowInConsole(ownPeerId + " HANDSHAKE message has been sent successfully.");
+            remotePeerInfo.setPeerState(2);
+        }
+    }
+
+    /**
+     * Hands a received message to the inbound pipeline. Reading is paused while the queue of the peer is full.
+     * Messages without payload are handed over in the reused details of the connection.
+     *
+     * @param message - the message decoded, null if its type is unknown
+     */
+    private void onMessage(BaseMsg message) {
+        if (message == null)
+            return;
+        byte messageType = message.getType();
+        if (messageType == MsgConstants.MESSAGE_CANCEL) {
+            //handled on arrival, so that the REQUEST messages for the piece still queued are skipped
+            remotePeerInfo.cancelRequests(PeerUtils.bytesToInteger(message.getPayload()));
+            return;
+        }
+        if (messageType == MsgConstants.MESSAGE_REQUEST || messageType == MsgConstants.MESSAGE_REQUEST_BLOCK) {
+            remotePeerInfo.requestReceived(PeerUtils.bytesToInteger(message.getPayload()));
+        }
+        MsgDetails messageDetails = controlMessageDetails[messageType - MsgConstants.MESSAGE_CHOKE];
+        if (messageDetails == null || message.getPayload() != null) {
+            messageDetails = new MsgDetails(message, remotePeerInfo);
+        }
+        if (!peerProcess.inboundMsgPipeline.offerMessage(messageDetails)) {
+            pendingMessage = messageDetails;
+            selectorLoop.setInterest(selectionKey, SelectionKey.OP_READ, false);
+            selectorLoop.pauseReading(this);
+        }
+    }
+
+    /**
+     * Sends the handshake message of the current host.
+     *
+     * @throws IOException if the connection is broken
+     */
+    private void sendHandshake() throws IOException {
+        send(HandshakeMsg.toByteArray(new HandshakeMsg(MsgConstants.HANDSHAKE_HEADER, ownPeerId)));
+    }
+
+    /**
+     * Range of a piece of the shared file which is still to be written to the channel.
+     */
+    private static final class FileRegion {
+        // Store holding the piece
+        private final PieceStore pieceStore;
+        // Index of the piece
+        private final int pieceIndex;
+        // Position of the next byte to transfer within the piece
+        private int offset;
+        // Number of bytes still to transfer
+        private int remaining;
+
+        FileRegion(PieceStore pieceStore, int pieceIndex, int offset, int length) {
+            this.pieceStore = pieceStore;
+            this.pieceIndex = pieceIndex;
+            this.offset = offset;
+            this.remaining = length;
+        }
+
+        /**
+         * Transfers as much of the range as the channel takes.
+         *
+         * @param target - channel the data is written to
+         * @return true if the whole range has been transferred
+         * @throws IOException if the file cannot be read or the channel is broken
+         */
+        boolean writeTo(WritableByteChannel target) throws IOException {
+            while (remaining > 0) {
+                int transferred = (int) pieceStore.transferTo(pieceIndex, offset, remaining, target);
+                if (transferred == 0) {
+                    return false;
+                }
+                offset += transferred;
+                remaining -= transferred;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * This method is used to log a message in a log file and show it in console
+     *
+     * @param message - message to be logged and showed in console
+     */
+    private static void logAndShowInConsole(String message) {
+        LoggingHelper.logAndDisplay(message);
+    }
+}
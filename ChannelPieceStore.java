@@ -0,0 +1,73 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Piece store reading and writing the shared file with positional FileChannel calls, which do not move the position
+ * of the channel and may be used by several threads at once.
+ */
+public class ChannelPieceStore implements PieceStore {
+
+    // Channel of the shared file, open for the lifetime of the process
+    private final FileChannel fileChannel;
+    // true if pieces are written to the file
+    private final boolean writable;
+
+    /**
+     * Opens the shared file.
+     *
+     * @param file     - the shared file
+     * @param writable - true if pieces are written to the file
+     * @throws IOException if the file cannot be opened
+     */
+    public ChannelPieceStore(File file, boolean writable) throws IOException {
+        this.writable = writable;
+        fileChannel = writable
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    @Override
+    public void read(int pieceIndex, int offset, byte[] data, int dataOffset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset, length);
+        long position = PieceStore.filePosition(pieceIndex, offset);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position() - dataOffset) == -1)
+                throw new EOFException("piece " + pieceIndex + " is beyond the end of the file");
+        }
+    }
+
+    @Override
+    public void write(int pieceIndex, int offset, byte[] data, int dataOffset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, dataOffset, length);
+        long position = PieceStore.filePosition(pieceIndex, offset);
+        while (buffer.hasRemaining()) {
+            fileChannel.write(buffer, position + buffer.position() - dataOffset);
+        }
+    }
+
+    @Override
+    public long transferTo(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+        return PieceStore.transfer(fileChannel, pieceIndex, offset, length, target);
+    }
+
+    @Override
+    public void force() throws IOException {
+        fileChannel.force(false);
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (writable) {
+                force();
+            }
+            fileChannel.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -14,4 +14,34 @@ public class ConfigSettings {
     public static int fileSize;
     // Size of individual pieces the file is split into for transfer
     public static int pieceSize;
+    // Maximum number of received messages buffered per remote peer
+    public static int inboundQueueCapacity = 1024;
+    // How received messages are processed: "actor" runs every peer on a shared worker pool, "single" uses one thread
+    public static String messageExecutionMode = "actor";
+    // Number of worker threads running the peer actors
+    public static int messageWorkerThreads = Runtime.getRuntime().availableProcessors();
+    // How peer connections are served: "reactor" uses non-blocking channels on selector threads, "blocking" a thread per connection
+    public static String transportMode = "reactor";
+    // Number of selector threads serving the connections in reactor mode
+    public static int selectorThreads = 2;
+    // Threads serving connections in blocking mode: "platform" or "virtual"
+    public static String connectionThreadMode = "platform";
+    // Largest number of REQUEST messages kept in flight to one peer, the actual number adapts to the peer's rate and round-trip time
+    public static int requestWindowSize = 16;
+    // Longest time in milliseconds a REQUEST may stay unanswered, the deadline of a request follows the measured answer time of the peer
+    public static int requestTimeout = 30000;
+    // Largest number of missing pieces at which pieces in flight to another peer are requested again, 0 disables endgame mode
+    public static int endgameThreshold = 20;
+    // Size of the blocks requested from peers supporting block requests, 0 requests whole pieces from every peer
+    public static int blockSize = 16384;
+    // How the shared file is accessed: "mapped" serves pieces from memory-mapped regions, "channel" uses positional file channel I/O
+    public static String storageMode = "mapped";
+    // Largest number of received bytes waiting for the disk writer, no more data is requested while it is reached
+    public static int diskWriteQueueSize = 32 * 1024 * 1024;
+    // When written pieces are forced to the disk: "none" leaves it to the operating system, "batch" forces every batch of writes before its pieces are marked present
+    public static String fsyncPolicy = "none";
+    // Algorithm of the digests received pieces are checked against, "none" disables the verification
+    public static String pieceDigest = "SHA-256";
+    // Longest time in milliseconds a peer without the file waits for the metainfo at startup
+    public static int metaInfoTimeout = 60000;
 }
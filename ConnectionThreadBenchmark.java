@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares serving peer connections on platform threads and on virtual threads.
+ * It starts the real PeerServerHandler and PeerMessageHandler classes on a local port, opens the given number of
+ * connections which perform the handshake and send control messages, and reports the time needed until every
+ * message reached the inbound pipeline, the peak number of platform threads and the resident memory.
+ * Resident memory is not released between runs, so pass a single mode to compare it in separate JVMs.
+ *
+ * Usage: java ConnectionThreadBenchmark [connections] [messagesPerConnection] [platform|virtual]
+ */
+public class ConnectionThreadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int messagesPerConnection = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        String[] modes = args.length > 2 ? new String[]{args[2]} : new String[]{"platform", "virtual"};
+        if (!PeerUtils.hasVirtualThreads()) {
+            System.out.println("This JDK has no virtual threads, the virtual mode runs on platform threads");
+        }
+
+        ConfigSettings.fileSize = 1;
+        ConfigSettings.pieceSize = 1;
+        List<RemotePeerInfo> peers = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            String peerID = String.valueOf(i);
+            peers.add(new RemotePeerInfo(peerID, "localhost", "0", 0, i));
+        }
+        peerProcess.peerTable = new PeerTable(peers);
+        peerProcess.bitFieldMsg = new BitFieldMessage();
+        peerProcess.piecePicker = new PiecePicker(peerProcess.bitFieldMsg);
+        peerProcess.inboundMsgPipeline.startActors(Runnable::run, messageDetails -> {
+        });
+
+        System.out.println("connections=" + connections + " messagesPerConnection=" + messagesPerConnection);
+        System.out.printf("%-10s %12s %14s %12s%n", "mode", "elapsed ms", "peak threads", "rss MB");
+        for (String mode : modes) {
+            runBenchmark(mode, connections, messagesPerConnection);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs the benchmark with the given connection thread mode and prints one result line.
+     *
+     * @param mode                  - connection thread mode
+     * @param connections           - number of connections to open
+     * @param messagesPerConnection - number of messages sent on every connection
+     */
+    private static void runBenchmark(String mode, int connections, int messagesPerConnection) throws Exception {
+        ConfigSettings.connectionThreadMode = mode;
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        LoggingHelper.log.setUseParentHandlers(false);
+
+        ServerSocket serverSocket = new ServerSocket(0, connections, InetAddress.getLoopbackAddress());
+        Thread serverThread = PeerUtils.newConnectionThread(new PeerServerHandler(serverSocket, "9999"));
+        serverThread.start();
+
+        System.gc();
+        threadBean.resetPeakThreadCount();
+        long expectedMessages = peerProcess.inboundMsgPipeline.getEnqueuedCount() + (long) connections * messagesPerConnection;
+        CountDownLatch release = new CountDownLatch(1);
+        List<Thread> clients = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            String peerID = String.valueOf(i);
+            Thread client = PeerUtils.newVirtualThread(() -> runClient(serverSocket.getLocalPort(), peerID, messagesPerConnection, release));
+            client.start();
+            clients.add(client);
+        }
+        while (peerProcess.inboundMsgPipeline.getEnqueuedCount() < expectedMessages) {
+            Thread.sleep(1);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        long residentMegabytes = residentMemoryKilobytes() / 1024;
+
+        release.countDown();
+        for (Thread client : clients) {
+            client.join();
+        }
+        serverSocket.close();
+        System.setOut(console);
+        System.out.printf("%-10s %12d %14d %12s%n", mode, elapsedMillis, threadBean.getPeakThreadCount(),
+                residentMegabytes < 0 ? "n/a" : String.valueOf(residentMegabytes));
+    }
+
+    /**
+     * Connects as a remote peer, performs the handshake, sends control messages and keeps the connection
+     * open until the measurement is done.
+     */
+    private static void runClient(int port, String peerID, int messagesPerConnection, CountDownLatch release) {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            out.write(HandshakeMsg.toByteArray(new HandshakeMsg(MsgConstants.HANDSHAKE_HEADER, peerID)));
+            in.readNBytes(MsgConstants.HANDSHAKE_MESSAGE_LENGTH);
+            byte[] interested = BaseMsg.convertMessageToByteArray(BaseMsg.controlMessage(MsgConstants.MESSAGE_INTERESTED));
+            for (int i = 0; i < messagesPerConnection; i++) {
+                out.write(interested);
+            }
+            release.await();
+        } catch (IOException | InterruptedException e) {
+        }
+    }
+
+    /**
+     * @return resident memory of the process in kilobytes, or -1 where it is not available
+     */
+    private static long residentMemoryKilobytes() {
+        Path status = Paths.get("/proc/self/status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+        }
+        return -1;
+    }
+}
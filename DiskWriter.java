@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the received pieces and blocks to the piece store on a thread of its own, so that the threads processing
+ * messages hand the data over and go on with the next request instead of waiting for the disk.
+ * The writer takes all the writes waiting at once, orders them by their position in the file and merges adjacent
+ * ones into larger sequential writes. After a batch has been written, and forced to the disk if the FsyncPolicy
+ * setting asks for it, the listeners of the pieces completed by the batch are told in the order the data arrived,
+ * and the journal records appended since the previous batch are forced as well.
+ * The bytes waiting are bounded by the DiskWriteQueueSize setting. No more data is requested while the queue is full,
+ * and the peers are asked to refill their request windows once the writer has caught up.
+ */
+public class DiskWriter implements Runnable {
+
+    // Largest number of bytes written with one call after adjacent writes have been merged
+    private static final int MAX_COALESCED_LENGTH = 1 << 20;
+    // Queued by close, the writer stops after the writes before it
+    private static final PendingWrite END_OF_WRITES = new PendingWrite(0, 0, null, 0, 0, null);
+
+    /**
+     * Receives the outcome of storing a piece. It is told on the writer thread, so it only hands the outcome over
+     * and never changes the state of a peer or writes to a connection.
+     */
+    public interface CompletionListener {
+        /**
+         * @param stored - true if every write of the piece has been handed to the store; false if one has failed
+         */
+        void pieceStored(boolean stored);
+    }
+
+    // Store the data is written to
+    private final PieceStore pieceStore;
+    // Writes waiting for the writer thread in arrival order
+    private final BlockingQueue<PendingWrite> writeQueue = new LinkedBlockingQueue<>();
+    // Number of bytes waiting in the queue or being written
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // Set when no more data could be requested because the queue was full
+    private volatile boolean refillPending;
+    // Pieces with a failed write whose listener has not been told yet, used by the writer thread only
+    private final Set<Integer> failedPieces = new HashSet<>();
+    // Adjacent writes are copied into it to be written with one call, used by the writer thread only
+    private final byte[] coalesceBuffer = new byte[MAX_COALESCED_LENGTH];
+    // Thread writing the data
+    private Thread writerThread;
+
+    /**
+     * Initializes the writer of a piece store.
+     *
+     * @param pieceStore - store the data is written to
+     */
+    public DiskWriter(PieceStore pieceStore) {
+        this.pieceStore = pieceStore;
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        writerThread = new Thread(this, "disk-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * @return true if more data may be requested; false while the writer is behind by a full queue
+     */
+    public boolean hasRoom() {
+        if (queuedBytes.get() < ConfigSettings.diskWriteQueueSize)
+            return true;
+        refillPending = true;
+        return false;
+    }
+
+    /**
+     * Queues part of a piece to be written. Never blocks.
+     *
+     * @param pieceIndex - index of the piece
+     * @param offset     - position of the data within the piece
+     * @param data       - array holding the data, it must not be changed afterwards
+     * @param dataOffset - position of the data in the array
+     * @param length     - number of bytes to write
+     * @param listener   - told once the piece is stored if the data completes the piece, otherwise null
+     */
+    public void write(int pieceIndex, int offset, byte[] data, int dataOffset, int length, CompletionListener listener) {
+        queuedBytes.addAndGet(length);
+        writeQueue.add(new PendingWrite(pieceIndex, offset, data, dataOffset, length, listener));
+    }
+
+    /**
+     * Writes the data still waiting and stops the writer thread.
+     */
+    public void close() {
+        if (writerThread == null)
+            return;
+        writeQueue.add(END_OF_WRITES);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * Writes the queued data batch by batch until the writer is closed.
+     */
+    @Override
+    public void run() {
+        List<PendingWrite> batch = new ArrayList<>();
+        List<PendingWrite> writesInFileOrder = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(writeQueue.take());
+                writeQueue.drainTo(batch);
+                boolean endOfWrites = batch.remove(END_OF_WRITES);
+                writeBatch(batch, writesInFileOrder);
+                batch.clear();
+                if (endOfWrites)
+                    return;
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * Writes a batch of writes merging adjacent ones, forces it to the disk if configured and tells the listeners.
+     *
+     * @param batch             - writes in arrival order
+     * @param writesInFileOrder - reused list for the writes ordered by position
+     */
+    private void writeBatch(List<PendingWrite> batch, List<PendingWrite> writesInFileOrder) {
+        writesInFileOrder.clear();
+        writesInFileOrder.addAll(batch);
+        writesInFileOrder.sort(Comparator.comparingLong(PendingWrite::filePosition));
+        int runStart = 0;
+        while (runStart < writesInFileOrder.size()) {
+            int runEnd = runStart + 1;
+            int runLength = writesInFileOrder.get(runStart).length;
+            while (runEnd < writesInFileOrder.size()) {
+                PendingWrite next = writesInFileOrder.get(runEnd);
+                if (next.filePosition() != writesInFileOrder.get(runStart).filePosition() + runLength
+                        || runLength + next.length > MAX_COALESCED_LENGTH)
+                    break;
+                runLength += next.length;
+                runEnd++;
+            }
+            writeRun(writesInFileOrder, runStart, runEnd, runLength);
+            runStart = runEnd;
+        }
+
+        if (ConfigSettings.fsyncPolicy.equalsIgnoreCase("batch")) {
+            try {
+                pieceStore.force();
+            } catch (IOException e) {
+                logAndShowInConsole(peerProcess.currentPeerID + " ERROR in forcing pieces to the disk " + e.getMessage());
+                for (PendingWrite pendingWrite : batch) {
+                    failedPieces.add(pendingWrite.pieceIndex);
+                }
+            }
+        }
+
+        long writtenBytes = 0;
+        for (PendingWrite pendingWrite : batch) {
+            writtenBytes += pendingWrite.length;
+            if (pendingWrite.listener != null) {
+                pendingWrite.listener.pieceStored(!failedPieces.remove(pendingWrite.pieceIndex));
+            }
+        }
+        if (ConfigSettings.fsyncPolicy.equalsIgnoreCase("batch") && peerProcess.pieceJournal != null) {
+            //the records of the pieces reach the disk after the pieces themselves
+            peerProcess.pieceJournal.force();
+        }
+        queuedBytes.addAndGet(-writtenBytes);
+        if (refillPending && queuedBytes.get() < ConfigSettings.diskWriteQueueSize) {
+            refillPending = false;
+            RequestTimeoutMonitor.requestReleasedPieces(null);
+        }
+    }
+
+    /**
+     * Writes adjacent writes with one call, copying them into the coalesce buffer if there are several.
+     *
+     * @param writes    - writes ordered by position
+     * @param from      - position of the first write of the run in the list
+     * @param to        - position following the last write of the run in the list
+     * @param runLength - number of bytes of the run
+     */
+    private void writeRun(List<PendingWrite> writes, int from, int to, int runLength) {
+        PendingWrite first = writes.get(from);
+        try {
+            if (to - from == 1) {
+                pieceStore.write(first.pieceIndex, first.offset, first.data, first.dataOffset, first.length);
+            } else {
+                int position = 0;
+                for (int i = from; i < to; i++) {
+                    PendingWrite pendingWrite = writes.get(i);
+                    System.arraycopy(pendingWrite.data, pendingWrite.dataOffset, coalesceBuffer, position, pendingWrite.length);
+                    position += pendingWrite.length;
+                }
+                pieceStore.write(first.pieceIndex, first.offset, coalesceBuffer, 0, runLength);
+            }
+        } catch (IOException e) {
+            logAndShowInConsole(peerProcess.currentPeerID + " ERROR in writing piece " + first.pieceIndex + " " + e.getMessage());
+            for (int i = from; i < to; i++) {
+                failedPieces.add(writes.get(i).pieceIndex);
+            }
+        }
+    }
+
+    /**
+     * Part of a piece waiting to be written.
+     */
+    private static final class PendingWrite {
+        // Index of the piece
+        private final int pieceIndex;
+        // Position of the data within the piece
+        private final int offset;
+        // Array holding the data
+        private final byte[] data;
+        // Position of the data in the array
+        private final int dataOffset;
+        // Number of bytes to write
+        private final int length;
+        // Told once the piece is stored, null if the data does not complete the piece
+        private final CompletionListener listener;
+
+        PendingWrite(int pieceIndex, int offset, byte[] data, int dataOffset, int length, CompletionListener listener) {
+            this.pieceIndex = pieceIndex;
+            this.offset = offset;
+            this.data = data;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.listener = listener;
+        }
+
+        /**
+         * @return position of the data in the file
+         */
+        long filePosition() {
+            return PieceStore.filePosition(pieceIndex, offset);
+        }
+    }
+
+    /**
+     * This method is used to log a message in a log file and show it in console
+     *
+     * @param message - message to be logged and showed in console
+     */
+    private static void logAndShowInConsole(String message) {
+        LoggingHelper.logAndDisplay(message);
+    }
+}
@@ -12,7 +12,7 @@ public class FilePiece {
      * Initializes a new FilePiece with default values.
      */
     public FilePiece() {
-        data = new byte[ConfigSettings.pieceSize];
+        data = null;
         index = -1;
         presenceFlag = 0;
         retrievedFromPeerId = null;
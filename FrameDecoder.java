@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the bytes received from a peer into the handshake and the messages which follow it.
+ * Bytes are read into a single receive buffer and decoded in place, so a read may end in the middle of a message
+ * or contain several messages. Partial messages are kept until the rest of them arrives.
+ */
+public class FrameDecoder {
+
+    // Initial size of the receive buffer, it grows up to the largest message received
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    // Bytes received and not yet decoded, always in read mode
+    private ByteBuffer buffer;
+    // Largest message length, excluding the length field, accepted from the peer
+    private final int maxMessageLength;
+
+    /**
+     * Initializes a decoder accepting messages up to the largest message of the shared file.
+     */
+    public FrameDecoder() {
+        this(maxMessageLength());
+    }
+
+    /**
+     * Initializes a decoder accepting messages up to the given length.
+     *
+     * @param maxMessageLength - largest message length, excluding the length field
+     */
+    public FrameDecoder(int maxMessageLength) {
+        this.maxMessageLength = maxMessageLength;
+        int largestFrame = MsgConstants.MESSAGE_LENGTH + maxMessageLength;
+        buffer = ByteBuffer.allocate(Math.max(MsgConstants.HANDSHAKE_MESSAGE_LENGTH, Math.min(INITIAL_BUFFER_SIZE, largestFrame)));
+        buffer.limit(0);
+    }
+
+    /**
+     * @return the largest message length, excluding the length field, which a peer may send
+     */
+    public static int maxMessageLength() {
+        int numPieces = (int) Math.ceil((double) ConfigSettings.fileSize / ConfigSettings.pieceSize);
+        int bitFieldLength = (numPieces + 7) / 8;
+        int pieceMessageLength = MsgConstants.PIECE_INDEX_LENGTH + MsgConstants.BLOCK_OFFSET_LENGTH + ConfigSettings.pieceSize;
+        return MsgConstants.MESSAGE_TYPE + Math.max(pieceMessageLength, bitFieldLength);
+    }
+
+    /**
+     * Reads the bytes available from a stream into the receive buffer, blocking until at least one byte arrives.
+     *
+     * @param in - stream to read from
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if the stream cannot be read
+     */
+    public int readFrom(InputStream in) throws IOException {
+        makeRoom();
+        int bytesRead = in.read(buffer.array(), buffer.limit(), buffer.capacity() - buffer.limit());
+        if (bytesRead > 0) {
+            buffer.limit(buffer.limit() + bytesRead);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Reads the bytes available from a channel into the receive buffer.
+     *
+     * @param channel - channel to read from
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if the channel cannot be read
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        int start = buffer.position();
+        buffer.position(buffer.limit()).limit(buffer.capacity());
+        int bytesRead;
+        try {
+            bytesRead = channel.read(buffer);
+        } finally {
+            buffer.limit(buffer.position()).position(start);
+        }
+        return bytesRead;
+    }
+
+    /**
+     * @return true if a complete handshake has been received
+     */
+    public boolean hasCompleteHandshake() {
+        return buffer.remaining() >= MsgConstants.HANDSHAKE_MESSAGE_LENGTH;
+    }
+
+    /**
+     * Decodes the handshake at the start of the received bytes. A complete handshake must have been received.
+     *
+     * @return the handshake received
+     */
+    public HandshakeMsg decodeHandshake() {
+        byte[] handshakeInBytes = new byte[MsgConstants.HANDSHAKE_MESSAGE_LENGTH];
+        buffer.get(handshakeInBytes);
+        return HandshakeMsg.fromByteArray(handshakeInBytes);
+    }
+
+    /**
+     * Checks whether a complete message has been received. When only part of a message has been received
+     * the receive buffer is grown so that the whole message fits into it.
+     *
+     * @return true if a complete message has been received
+     * @throws IOException if the length of the message is invalid
+     */
+    public boolean hasCompleteFrame() throws IOException {
+        int frameLength = MsgCodec.peekFrameLength(buffer);
+        if (frameLength == -1)
+            return false;
+        int messageLength = frameLength - MsgConstants.MESSAGE_LENGTH;
+        if (messageLength < MsgConstants.MESSAGE_TYPE || messageLength > maxMessageLength)
+            throw new IOException("Invalid message length " + messageLength);
+        if (buffer.remaining() >= frameLength)
+            return true;
+        ensureCapacity(frameLength);
+        return false;
+    }
+
+    /**
+     * Decodes the next message. A complete message must have been received.
+     * Messages without payload are returned as shared instances, the payload of other messages is copied once
+     * out of the receive buffer.
+     *
+     * @return the message decoded, or null if its type is unknown
+     */
+    public BaseMsg decodeFrame() {
+        return MsgCodec.decode(buffer);
+    }
+
+    /**
+     * Makes room at the end of the receive buffer by moving a partially received message to its start.
+     */
+    private void makeRoom() {
+        if (!buffer.hasRemaining()) {
+            buffer.clear().limit(0);
+        } else if (buffer.limit() == buffer.capacity()) {
+            buffer.compact().flip();
+        }
+    }
+
+    /**
+     * Grows the receive buffer so that a message of the given length fits into it.
+     *
+     * @param frameLength - length of the message including its length field
+     */
+    private void ensureCapacity(int frameLength) {
+        if (buffer.capacity() < frameLength) {
+            ByteBuffer largerBuffer = ByteBuffer.allocate(frameLength);
+            largerBuffer.put(buffer);
+            largerBuffer.flip();
+            buffer = largerBuffer;
+        }
+    }
+}
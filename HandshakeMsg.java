@@ -10,6 +10,7 @@ public class HandshakeMsg {
     private byte[] zeroBits = new byte[MsgConstants.HANDSHAKE_ZEROBITS_LENGTH];
     private String header;
     private String peerID;
+    private byte capabilities = MsgConstants.CAPABILITIES_NONE;
 
     /**
      * Default constructor to instantiate a handshake object.
@@ -35,6 +36,8 @@ public class HandshakeMsg {
                 throw new Exception("Handshake PeerID is too large");
 
             this.zeroBits = "0000000000".getBytes(MsgConstants.DEFAULT_CHARSET);
+            if (ConfigSettings.blockSize > 0)
+                this.capabilities = MsgConstants.CAPABILITY_BLOCK_REQUESTS;
         } catch (Exception e) {
             // Handle the exception appropriately, e.g., logging it.
         }
@@ -70,6 +73,8 @@ public class HandshakeMsg {
                 System.arraycopy(handshakeMsg.getPeerIDInBytes(), 0, handshakeMessageInBytes,
                         MsgConstants.HANDSHAKE_HEADER_LENGTH + MsgConstants.HANDSHAKE_ZEROBITS_LENGTH,
                         handshakeMsg.getPeerIDInBytes().length);
+
+            handshakeMessageInBytes[MsgConstants.HANDSHAKE_CAPABILITIES_OFFSET] = handshakeMsg.getCapabilities();
         } catch (Exception e) {
             handshakeMessageInBytes = null;
 
@@ -102,6 +107,7 @@ public class HandshakeMsg {
 
             message.setHeaderFromBytes(messageHeader);
             message.setPeerIDFromBytes(messagePeerID);
+            message.setCapabilities(byteArray[MsgConstants.HANDSHAKE_CAPABILITIES_OFFSET]);
 
         } catch (Exception e) {
 
@@ -215,6 +221,31 @@ public class HandshakeMsg {
         this.peerID = peerID;
     }
 
+    /**
+     * This method is used to get the capabilities announced in the handshake
+     * @return capabilities
+     */
+    public byte getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * This method is used to set the capabilities announced in the handshake
+     * @param capabilities
+     */
+    public void setCapabilities(byte capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * This method is used to check if the sender of the handshake accepts block requests.
+     * The ASCII '0' (0x30) sent by earlier versions has the block requests bit clear.
+     * @return true - block requests are supported; false - only whole pieces may be requested
+     */
+    public boolean supportsBlockRequests() {
+        return (capabilities & MsgConstants.CAPABILITY_BLOCK_REQUESTS) != 0;
+    }
+
     /**
      * This method is used to log a message in a log file and show it in console
      * @param message - message to be logged and showed in console
@@ -0,0 +1,272 @@
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Pipeline that carries messages read from sockets to the message processor.
+ * Messages are sharded into one bounded blocking queue per remote peer, so socket readers of
+ * different peers never contend on a common lock. The consumer is woken up by a signal when
+ * a message arrives instead of polling.
+ * In actor mode every shard is instead drained by its own serialized task on a shared worker pool,
+ * so peers are processed in parallel while each peer still sees its messages in order.
+ */
+public class InboundMsgPipeline {
+
+    // Maximum number of messages an actor processes before yielding its worker thread
+    private static final int ACTOR_BATCH_SIZE = 64;
+
+    // Queue of messages for every remote peer, indexed by the slot of the peer and grown as peers first send
+    private volatile PeerShard[] shards = new PeerShard[0];
+    // Shards having a message waiting, one entry per enqueued message in arrival order
+    private final ConcurrentLinkedQueue<PeerShard> readyShards = new ConcurrentLinkedQueue<>();
+    // Thread consuming the messages
+    private volatile Thread consumerThread;
+    // Indicates whether the consumer is parked waiting for a message
+    private volatile boolean consumerWaiting;
+    // Number of messages currently held in all the shards
+    private final AtomicLong totalDepth = new AtomicLong();
+    // Highest number of messages held at any time
+    private final AtomicLong peakDepth = new AtomicLong();
+    // Number of messages enqueued since start
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    // Worker pool running the peer actors, null when a single consumer takes the messages
+    private volatile Executor actorExecutor;
+    // Handler invoked by the peer actors for every message
+    private volatile Consumer<MsgDetails> actorHandler;
+
+    /**
+     * Switches the pipeline to actor mode. Every peer's messages are then handed to the handler
+     * by a task on the executor, one message at a time per peer.
+     * Must be called before the first message is enqueued.
+     * @param executor - worker pool running the actors
+     * @param handler - handler processing a message
+     */
+    public void startActors(Executor executor, Consumer<MsgDetails> handler) {
+        actorHandler = handler;
+        actorExecutor = executor;
+    }
+
+    /**
+     * Adds a message to the queue of its sender peer. Blocks while that queue is full.
+     * @param msgDetails - the message details to be queued.
+     * @throws InterruptedException if interrupted while waiting for space in the queue
+     */
+    public void enqueueMessage(MsgDetails msgDetails) throws InterruptedException {
+        PeerShard shard = getShard(msgDetails.getSenderIndex());
+        shard.messages.put(msgDetails);
+        messageAdded(shard);
+    }
+
+    /**
+     * Adds a message to the queue of its sender peer if that queue has space. Never blocks,
+     * so it is used by selector threads which must not wait for the processor.
+     * @param msgDetails - the message details to be queued.
+     * @return true if the message was queued; false if the queue of the peer is full
+     */
+    public boolean offerMessage(MsgDetails msgDetails) {
+        PeerShard shard = getShard(msgDetails.getSenderIndex());
+        if (!shard.messages.offer(msgDetails)) {
+            return false;
+        }
+        messageAdded(shard);
+        return true;
+    }
+
+    /**
+     * Adds a message posted by the current peer itself, such as the result of storing a piece, to the queue of a
+     * remote peer. Never blocks and never fails: such messages are few and bypass the capacity of the queue, so the
+     * disk writer and the verifier never wait for a peer whose queue is full.
+     * @param msgDetails - the message details to be queued.
+     */
+    public void postLocalMessage(MsgDetails msgDetails) {
+        PeerShard shard = getShard(msgDetails.getSenderIndex());
+        shard.localMessages.add(msgDetails);
+        messageAdded(shard);
+    }
+
+    /**
+     * Updates the counters after a message was added to a shard and hands the shard to its consumer.
+     * @param shard - shard the message was added to
+     */
+    private void messageAdded(PeerShard shard) {
+        shard.depth.incrementAndGet();
+        enqueuedCount.incrementAndGet();
+        long depth = totalDepth.incrementAndGet();
+        long peak = peakDepth.get();
+        while (depth > peak && !peakDepth.compareAndSet(peak, depth)) {
+            peak = peakDepth.get();
+        }
+
+        if (actorExecutor != null) {
+            scheduleActor(shard);
+            return;
+        }
+        readyShards.offer(shard);
+        if (consumerWaiting) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    /**
+     * Retrieves and removes the next message, waiting until one is available.
+     * Messages of a peer are returned in the order they were enqueued. Only one thread may consume messages.
+     * @return the message details removed from the queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public MsgDetails takeMessage() throws InterruptedException {
+        consumerThread = Thread.currentThread();
+        while (true) {
+            PeerShard shard = readyShards.poll();
+            if (shard == null) {
+                consumerWaiting = true;
+                shard = readyShards.poll();
+                if (shard == null) {
+                    LockSupport.park(this);
+                }
+                consumerWaiting = false;
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            if (shard != null) {
+                MsgDetails msgDetails = shard.poll();
+                shard.depth.decrementAndGet();
+                totalDepth.decrementAndGet();
+                return msgDetails;
+            }
+        }
+    }
+
+    /**
+     * Submits the actor of a shard to the worker pool unless it is already scheduled or running.
+     * @param shard - shard having a message waiting
+     */
+    private void scheduleActor(PeerShard shard) {
+        if (shard.scheduled.compareAndSet(false, true)) {
+            actorExecutor.execute(() -> runActor(shard));
+        }
+    }
+
+    /**
+     * Processes the waiting messages of a shard in order. After a batch the worker thread is yielded
+     * to other peers and the actor is rescheduled if messages are still waiting.
+     * @param shard - shard to be drained
+     */
+    private void runActor(PeerShard shard) {
+        try {
+            for (int i = 0; i < ACTOR_BATCH_SIZE; i++) {
+                MsgDetails msgDetails = shard.poll();
+                if (msgDetails == null) {
+                    break;
+                }
+                shard.depth.decrementAndGet();
+                totalDepth.decrementAndGet();
+                try {
+                    actorHandler.accept(msgDetails);
+                } catch (RuntimeException e) {
+                    LoggingHelper.logAndDisplay("ERROR processing message from Peer " + msgDetails.getSenderPeerID() + " - " + e);
+                }
+            }
+        } finally {
+            shard.scheduled.set(false);
+            if (!shard.messages.isEmpty() || !shard.localMessages.isEmpty()) {
+                scheduleActor(shard);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting to be processed for a peer.
+     * @param peerSlot - slot of the remote peer
+     * @return queue depth of the peer
+     */
+    public int getQueueDepth(int peerSlot) {
+        PeerShard[] current = shards;
+        PeerShard shard = peerSlot < current.length ? current[peerSlot] : null;
+        return shard == null ? 0 : shard.depth.get();
+    }
+
+    /**
+     * @return number of messages waiting to be processed for all the peers
+     */
+    public long getTotalQueueDepth() {
+        return totalDepth.get();
+    }
+
+    /**
+     * @return highest number of messages that were waiting at the same time
+     */
+    public long getPeakQueueDepth() {
+        return peakDepth.get();
+    }
+
+    /**
+     * @return number of messages enqueued since start
+     */
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    /**
+     * Returns the queue of a peer, creating it on first use.
+     * @param peerSlot - slot of the remote peer
+     * @return queue shard of the peer
+     */
+    private PeerShard getShard(int peerSlot) {
+        PeerShard[] current = shards;
+        if (peerSlot < current.length && current[peerSlot] != null) {
+            return current[peerSlot];
+        }
+        return createShard(peerSlot);
+    }
+
+    /**
+     * Creates the queue of a peer. The array of shards is copied and published again, so readers index it without
+     * locking and only the first message of every peer takes the lock.
+     * @param peerSlot - slot of the remote peer
+     * @return queue shard of the peer
+     */
+    private synchronized PeerShard createShard(int peerSlot) {
+        PeerShard[] current = shards;
+        if (peerSlot < current.length && current[peerSlot] != null) {
+            return current[peerSlot];
+        }
+        PeerShard[] grown = Arrays.copyOf(current, Math.max(current.length, peerSlot + 1));
+        grown[peerSlot] = new PeerShard(ConfigSettings.inboundQueueCapacity);
+        shards = grown;
+        return grown[peerSlot];
+    }
+
+    /**
+     * Bounded queue of messages received from one remote peer.
+     */
+    private static class PeerShard {
+        // Messages received from the peer
+        private final BlockingQueue<MsgDetails> messages;
+        // Messages posted by the current peer itself, unbounded
+        private final ConcurrentLinkedQueue<MsgDetails> localMessages = new ConcurrentLinkedQueue<>();
+        // Number of messages in the queue
+        private final AtomicInteger depth = new AtomicInteger();
+        // Indicates whether the actor of the peer is scheduled or running
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        PeerShard(int capacity) {
+            messages = new ArrayBlockingQueue<>(capacity);
+        }
+
+        /**
+         * @return the next message, local messages first, or null if none is waiting
+         */
+        MsgDetails poll() {
+            MsgDetails msgDetails = localMessages.poll();
+            return msgDetails != null ? msgDetails : messages.poll();
+        }
+    }
+}
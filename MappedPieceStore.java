@@ -0,0 +1,117 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Piece store serving the shared file from memory-mapped regions, so that reading and writing a piece is a copy
+ * from or into the page cache without a system call.
+ * The file is mapped in regions of whole pieces, so a piece never spans two regions, while a write of adjacent pieces
+ * may and is split at the region boundary. Pieces are accessed with the absolute methods of the buffers, which do not
+ * move their position and may be used by several threads at once.
+ */
+public class MappedPieceStore implements PieceStore {
+
+    // Largest size of one mapped region in bytes
+    private static final int MAX_REGION_SIZE = 1 << 30;
+
+    // Channel of the shared file, open for the lifetime of the process
+    private final FileChannel fileChannel;
+    // Mapped regions of the file in file order
+    private final MappedByteBuffer[] regions;
+    // Size of every region but the last in bytes, a multiple of the piece size
+    private final long regionSize;
+    // Number of bytes of the file which are mapped
+    private final long mappedLength;
+    // true if pieces are written to the file
+    private final boolean writable;
+
+    /**
+     * Opens the shared file and maps it.
+     *
+     * @param file     - the shared file, it must already have its final size
+     * @param writable - true if pieces are written to the file
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedPieceStore(File file, boolean writable) throws IOException {
+        this.writable = writable;
+        fileChannel = writable
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        //a read-only mapping must not reach beyond the end of the file
+        mappedLength = writable ? ConfigSettings.fileSize : Math.min(ConfigSettings.fileSize, fileChannel.size());
+        regionSize = (long) Math.max(1, MAX_REGION_SIZE / ConfigSettings.pieceSize) * ConfigSettings.pieceSize;
+        regions = new MappedByteBuffer[(int) ((mappedLength + regionSize - 1) / regionSize)];
+        FileChannel.MapMode mapMode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        for (int i = 0; i < regions.length; i++) {
+            long start = i * regionSize;
+            regions[i] = fileChannel.map(mapMode, start, Math.min(regionSize, mappedLength - start));
+        }
+    }
+
+    @Override
+    public void read(int pieceIndex, int offset, byte[] data, int dataOffset, int length) throws IOException {
+        copy(pieceIndex, offset, data, dataOffset, length, false);
+    }
+
+    @Override
+    public void write(int pieceIndex, int offset, byte[] data, int dataOffset, int length) throws IOException {
+        copy(pieceIndex, offset, data, dataOffset, length, true);
+    }
+
+    @Override
+    public long transferTo(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+        //the mapping and the channel share the page cache, so the data sent is the data written through the mapping
+        return PieceStore.transfer(fileChannel, pieceIndex, offset, length, target);
+    }
+
+    @Override
+    public void force() {
+        for (MappedByteBuffer region : regions) {
+            region.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (writable) {
+                force();
+            }
+            fileChannel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Copies a range of the file from or into an array, region by region.
+     *
+     * @param write - true to copy the array into the file, false to copy the file into the array
+     * @throws EOFException if the range is not mapped
+     */
+    private void copy(int pieceIndex, int offset, byte[] data, int dataOffset, int length, boolean write) throws EOFException {
+        long position = PieceStore.filePosition(pieceIndex, offset);
+        if (pieceIndex < 0 || position + length > mappedLength)
+            throw new EOFException("piece " + pieceIndex + " is beyond the end of the file");
+        while (length > 0) {
+            MappedByteBuffer region = regions[(int) (position / regionSize)];
+            int positionInRegion = (int) (position % regionSize);
+            int chunk = Math.min(length, region.capacity() - positionInRegion);
+            //a view of its own per copy, so that concurrent readers and the writer never share a buffer position
+            ByteBuffer view = region.duplicate();
+            view.position(positionInRegion);
+            if (write) {
+                view.put(data, dataOffset, chunk);
+            } else {
+                view.get(data, dataOffset, chunk);
+            }
+            position += chunk;
+            dataOffset += chunk;
+            length -= chunk;
+        }
+    }
+}
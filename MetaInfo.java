@@ -0,0 +1,184 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Metainfo of the shared file: the digest of every piece, computed from the copy of a peer which has the file.
+ * A downloading peer checks every piece it receives against its digest before marking it present.
+ * The metainfo file starts with a header naming the file size, piece size and digest algorithm it was computed with,
+ * followed by the digests of the pieces in order.
+ */
+public class MetaInfo {
+
+    // Marks the beginning of a metainfo file
+    private static final int MAGIC = 0x5032504D;
+
+    // Size of the file the digests are computed from
+    private final int fileSize;
+    // Size of the pieces the digests are computed from
+    private final int pieceSize;
+    // Algorithm the digests are computed with
+    private final String digestAlgorithm;
+    // Number of bytes of one digest
+    private final int digestLength;
+    // Digest of piece i at position i * digestLength
+    private final byte[] digests;
+
+    /**
+     * Initializes the metainfo of the shared file.
+     *
+     * @param fileSize        - size of the file the digests are computed from
+     * @param pieceSize       - size of the pieces the digests are computed from
+     * @param digestAlgorithm - algorithm the digests are computed with
+     * @param digestLength    - number of bytes of one digest
+     * @param digests         - digests of the pieces in order
+     */
+    public MetaInfo(int fileSize, int pieceSize, String digestAlgorithm, int digestLength, byte[] digests) {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.digestAlgorithm = digestAlgorithm;
+        this.digestLength = digestLength;
+        this.digests = digests;
+    }
+
+    /**
+     * @return size of the file the digests are computed from
+     */
+    public int getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return size of the pieces the digests are computed from
+     */
+    public int getPieceSize() {
+        return pieceSize;
+    }
+
+    /**
+     * @return algorithm the digests are computed with
+     */
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * @return true if the metainfo is computed for the file size, piece size and digest algorithm of Common.cfg
+     */
+    public boolean matchesConfiguration() {
+        return fileSize == ConfigSettings.fileSize && pieceSize == ConfigSettings.pieceSize
+                && digestAlgorithm.equalsIgnoreCase(ConfigSettings.pieceDigest)
+                && digestLength == newDigest().getDigestLength();
+    }
+
+    /**
+     * Checks a digest computed from a piece against the digest of the metainfo.
+     *
+     * @param pieceIndex - index of the piece
+     * @param digest     - array holding the computed digest
+     * @param offset     - position of the digest in the array
+     * @return true if the piece has the content of the shared file
+     */
+    public boolean matches(int pieceIndex, byte[] digest, int offset) {
+        int start = pieceIndex * digestLength;
+        return Arrays.equals(digests, start, start + digestLength, digest, offset, offset + digestLength);
+    }
+
+    /**
+     * Writes the metainfo to a file. The metainfo is written next to the file first and then moved in place, so
+     * other peers never read a file which is written only partly.
+     *
+     * @param file - the metainfo file
+     * @throws IOException if the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        File partFile = new File(file.getPath() + ".part");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(partFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(fileSize);
+            out.writeInt(pieceSize);
+            out.writeUTF(digestAlgorithm);
+            out.writeInt(digestLength);
+            out.write(digests);
+        }
+        Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the metainfo of the shared file.
+     *
+     * @param file          - the metainfo file
+     * @param notOlderThan  - time of the last modification of the shared file the metainfo must not be older than, 0 to accept any
+     * @return the metainfo, or null if the file does not exist, is older or belongs to another file, piece size or digest algorithm
+     */
+    public static MetaInfo load(File file, long notOlderThan) {
+        if (!file.isFile() || file.lastModified() < notOlderThan)
+            return null;
+        MetaInfo metaInfo = read(file);
+        return metaInfo != null && metaInfo.matchesConfiguration() ? metaInfo : null;
+    }
+
+    /**
+     * Reads a metainfo file as it was written, whatever file size, piece size and digest algorithm it was computed for.
+     *
+     * @param file - the metainfo file
+     * @return the metainfo, or null if the file does not exist, is written only partly or is not a metainfo file
+     */
+    public static MetaInfo read(File file) {
+        if (!file.isFile())
+            return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                return null;
+            int fileSize = in.readInt();
+            int pieceSize = in.readInt();
+            String digestAlgorithm = in.readUTF();
+            int digestLength = in.readInt();
+            long digestsLength = numPieces(fileSize, pieceSize) * digestLength;
+            if (fileSize < 0 || pieceSize <= 0 || digestLength <= 0 || digestsLength > file.length())
+                return null;
+            byte[] digests = new byte[(int) digestsLength];
+            in.readFully(digests);
+            return new MetaInfo(fileSize, pieceSize, digestAlgorithm, digestLength, digests);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return a new digest of the algorithm selected by the PieceDigest setting
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ConfigSettings.pieceDigest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("unknown PieceDigest " + ConfigSettings.pieceDigest, e);
+        }
+    }
+
+    /**
+     * @return number of pieces of the shared file
+     */
+    public static int numPieces() {
+        return (int) numPieces(ConfigSettings.fileSize, ConfigSettings.pieceSize);
+    }
+
+    /**
+     * @param fileSize  - size of a file
+     * @param pieceSize - size of its pieces
+     * @return number of pieces of the file
+     */
+    private static long numPieces(int fileSize, int pieceSize) {
+        return pieceSize <= 0 ? 0 : ((long) fileSize + pieceSize - 1) / pieceSize;
+    }
+}
@@ -0,0 +1,173 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes messages (length, type and payload) directly into and out of reusable buffers.
+ * Messages without payload are decoded into shared instances, so encoding and decoding control messages
+ * allocates nothing.
+ */
+public final class MsgCodec {
+
+    // Length of the length and type fields preceding the payload
+    public static final int HEADER_LENGTH = MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE;
+
+    private MsgCodec() {
+    }
+
+    /**
+     * Returns the number of bytes a message occupies on the wire.
+     *
+     * @param payloadLength - length of the payload
+     * @return length of the encoded message
+     */
+    public static int encodedLength(int payloadLength) {
+        return HEADER_LENGTH + payloadLength;
+    }
+
+    /**
+     * Writes the length and type fields of a message.
+     *
+     * @param out           - buffer to write into
+     * @param messageType   - type of the message
+     * @param payloadLength - length of the payload which follows
+     */
+    public static void encodeHeader(ByteBuffer out, byte messageType, int payloadLength) {
+        out.putInt(MsgConstants.MESSAGE_TYPE + payloadLength);
+        out.put(messageType);
+    }
+
+    /**
+     * Writes a message without payload.
+     *
+     * @param out         - buffer to write into
+     * @param messageType - type of the message
+     */
+    public static void encode(ByteBuffer out, byte messageType) {
+        encodeHeader(out, messageType, 0);
+    }
+
+    /**
+     * Writes a message.
+     *
+     * @param out         - buffer to write into
+     * @param messageType - type of the message
+     * @param payload     - content of the message, null for messages without payload
+     */
+    public static void encode(ByteBuffer out, byte messageType, byte[] payload) {
+        encodeHeader(out, messageType, payload == null ? 0 : payload.length);
+        if (payload != null) {
+            out.put(payload);
+        }
+    }
+
+    /**
+     * Writes a message into an array.
+     *
+     * @param out         - array to write into
+     * @param offset      - position of the message in the array
+     * @param messageType - type of the message
+     * @param payload     - content of the message, null for messages without payload
+     * @return the number of bytes written
+     */
+    public static int encode(byte[] out, int offset, byte messageType, byte[] payload) {
+        int payloadLength = payload == null ? 0 : payload.length;
+        putInt(out, offset, MsgConstants.MESSAGE_TYPE + payloadLength);
+        out[offset + MsgConstants.MESSAGE_LENGTH] = messageType;
+        if (payload != null) {
+            System.arraycopy(payload, 0, out, offset + HEADER_LENGTH, payloadLength);
+        }
+        return HEADER_LENGTH + payloadLength;
+    }
+
+    /**
+     * Writes an integer in network byte order into an array.
+     *
+     * @param out    - array to write into
+     * @param offset - position of the integer
+     * @param value  - integer to be written
+     */
+    public static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Reads an integer in network byte order from an array.
+     *
+     * @param in     - array to read from
+     * @param offset - position of the integer
+     * @return the integer read
+     */
+    public static int getInt(byte[] in, int offset) {
+        return ((in[offset] & 0xff) << 24) | ((in[offset + 1] & 0xff) << 16)
+                | ((in[offset + 2] & 0xff) << 8) | (in[offset + 3] & 0xff);
+    }
+
+    /**
+     * Returns the length of the message at the position of the buffer without consuming it.
+     *
+     * @param in - buffer in read mode
+     * @return length of the whole message including the length field, or -1 if the length field is incomplete
+     */
+    public static int peekFrameLength(ByteBuffer in) {
+        if (in.remaining() < MsgConstants.MESSAGE_LENGTH)
+            return -1;
+        return MsgConstants.MESSAGE_LENGTH + in.getInt(in.position());
+    }
+
+    /**
+     * Returns the type of the message at the position of the buffer without consuming it.
+     * The header must be complete.
+     *
+     * @param in - buffer in read mode
+     * @return type of the message
+     */
+    public static byte peekType(ByteBuffer in) {
+        return in.get(in.position() + MsgConstants.MESSAGE_LENGTH);
+    }
+
+    /**
+     * Reads a complete message from the buffer. Messages without payload are returned as shared instances.
+     *
+     * @param in - buffer in read mode holding at least one complete message
+     * @return the message decoded, or null if the type is unknown
+     */
+    public static BaseMsg decode(ByteBuffer in) {
+        int messageLength = in.getInt();
+        byte messageType = in.get();
+        int payloadLength = messageLength - MsgConstants.MESSAGE_TYPE;
+        if (!BaseMsg.isValidType(messageType)) {
+            in.position(in.position() + payloadLength);
+            return null;
+        }
+        if (payloadLength == 0 && BaseMsg.isControlType(messageType))
+            return BaseMsg.controlMessage(messageType);
+
+        byte[] payload = new byte[payloadLength];
+        in.get(payload);
+        BaseMsg message = new BaseMsg();
+        message.setMessageType(messageType);
+        message.setMessageLength(messageLength);
+        message.setPayload(payload);
+        return message;
+    }
+
+    /**
+     * Creates the message details of every message without payload received from a peer. As the details are never
+     * modified they are reused for each message of that type instead of being allocated.
+     *
+     * @param sender - the remote peer
+     * @return message details indexed by message type
+     */
+    public static MsgDetails[] newControlMessageDetails(RemotePeerInfo sender) {
+        MsgDetails[] controlMessageDetails = new MsgDetails[MsgConstants.MESSAGE_TYPE_COUNT];
+        for (int i = 0; i < MsgConstants.MESSAGE_TYPE_COUNT; i++) {
+            byte messageType = (byte) (MsgConstants.MESSAGE_CHOKE + i);
+            if (BaseMsg.isControlType(messageType)) {
+                controlMessageDetails[i] = new MsgDetails(BaseMsg.controlMessage(messageType), sender);
+            }
+        }
+        return controlMessageDetails;
+    }
+}
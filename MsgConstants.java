@@ -8,27 +8,50 @@ public class MsgConstants {
     public static final int HANDSHAKE_HEADER_LENGTH = 18;
     public static final int HANDSHAKE_ZEROBITS_LENGTH = 10;
     public static final int HANDSHAKE_PEERID_LENGTH = 4;
+    // Last zero byte of the handshake carries the capabilities of the sender. Earlier versions fill every zero byte
+    // with the ASCII character '0' (0x30), which is read as no capabilities
+    public static final int HANDSHAKE_CAPABILITIES_OFFSET = HANDSHAKE_HEADER_LENGTH + HANDSHAKE_ZEROBITS_LENGTH - 1;
+    public static final byte CAPABILITIES_NONE = '0';
+    public static final byte CAPABILITY_BLOCK_REQUESTS = 0x01;
 
     // Constants for general message header
     public static final int MESSAGE_LENGTH = 4;
     public static final int MESSAGE_TYPE = 1;
 
-    // Constants representing different message types
-    public static final String MESSAGE_CHOKE = "0";
-    public static final String MESSAGE_UNCHOKE = "1";
-    public static final String MESSAGE_INTERESTED = "2";
-    public static final String MESSAGE_NOT_INTERESTED = "3";
-    public static final String MESSAGE_HAVE = "4";
-    public static final String MESSAGE_BITFIELD = "5";
-    public static final String MESSAGE_REQUEST = "6";
-    public static final String MESSAGE_PIECE = "7";
-    public static final String MESSAGE_DOWNLOADED = "8";
+    // Constants representing different message types, sent on the wire as the ASCII digits used by earlier versions
+    public static final byte MESSAGE_CHOKE = '0';
+    public static final byte MESSAGE_UNCHOKE = '1';
+    public static final byte MESSAGE_INTERESTED = '2';
+    public static final byte MESSAGE_NOT_INTERESTED = '3';
+    public static final byte MESSAGE_HAVE = '4';
+    public static final byte MESSAGE_BITFIELD = '5';
+    public static final byte MESSAGE_REQUEST = '6';
+    public static final byte MESSAGE_PIECE = '7';
+    public static final byte MESSAGE_DOWNLOADED = '8';
+    public static final byte MESSAGE_CANCEL = '9';
+    // Block requests and blocks, the ASCII characters following the digits, only sent to peers supporting them
+    public static final byte MESSAGE_REQUEST_BLOCK = ':';
+    public static final byte MESSAGE_BLOCK = ';';
+
+    // Delivered by the current peer to the actor of a remote peer when pieces were released, never sent on the wire
+    public static final byte MESSAGE_PIECES_RELEASED = 'r';
+    // Delivered by the disk writer to the actor of the peer which sent a piece once the piece has been written,
+    // carries the piece index and 1 if it was stored or 0 if a write failed, never sent on the wire
+    public static final byte MESSAGE_PIECE_STORED = 's';
+    // Delivered by the piece verifier to the actor of the peer which sent a piece once the piece has been checked,
+    // carries the piece index and 1 if it matches its digest or 0 if it is corrupt, never sent on the wire
+    public static final byte MESSAGE_PIECE_VERIFIED = 'v';
+
+    // Number of message types, types range from MESSAGE_CHOKE to MESSAGE_CHOKE + MESSAGE_TYPE_COUNT - 1
+    public static final int MESSAGE_TYPE_COUNT = 12;
 
     // Handshake header content
     public static final String HANDSHAKE_HEADER = "P2PFILESHARINGPROJ";
 
     // Constants related to message pieces
     public static final int PIECE_INDEX_LENGTH = 4;
+    public static final int BLOCK_OFFSET_LENGTH = 4;
+    public static final int BLOCK_LENGTH_LENGTH = 4;
 
     // Constants for connection types
     public static final int ACTIVE_CONNECTION = 1;
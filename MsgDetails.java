@@ -9,12 +9,27 @@ public class MsgDetails {
     // The unique identifier of the sender peer.
     private String senderPeerID;
 
+    // The slot of the sender peer in the peer table.
+    private int senderIndex;
+
     /**
      * Initializes a new instance of the MessageDetails class, setting the initial fields.
      */
     public MsgDetails() {
         this.baseMsg = new BaseMsg();
         this.senderPeerID = null;
+        this.senderIndex = -1;
+    }
+
+    /**
+     * Initializes a new instance of the MessageDetails class with a message and its sender.
+     * @param baseMsg The message received.
+     * @param sender The sender peer.
+     */
+    public MsgDetails(BaseMsg baseMsg, RemotePeerInfo sender) {
+        this.baseMsg = baseMsg;
+        this.senderPeerID = sender.getPeerId();
+        this.senderIndex = sender.getIndex();
     }
 
     /**
@@ -48,4 +63,12 @@ public class MsgDetails {
     public void setSenderPeerID(String senderPeerID) {
         this.senderPeerID = senderPeerID;
     }
+
+    /**
+     * Retrieves the slot of the sender peer, by which its state is found without a lookup by peer ID.
+     * @return The sender's slot in the peer table.
+     */
+    public int getSenderIndex() {
+        return senderIndex;
+    }
 }
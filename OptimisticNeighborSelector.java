@@ -1,8 +1,5 @@
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.util.Collections;
-import java.util.Set;
 import java.util.TimerTask;
 import java.util.Vector;
 
@@ -16,17 +13,13 @@ public class OptimisticNeighborSelector extends TimerTask {
      */
     @Override
     public void run() {
-        peerProcess.updateOtherPeerDetails();
-        if (!peerProcess.optimisticUnchokedNeighbors.isEmpty()) {
-            peerProcess.optimisticUnchokedNeighbors.clear();
-        }
+        PeerTable peerTable = peerProcess.peerTable;
+        peerTable.getOptimisticNeighbors().clear();
 
         // Collect all peers showing interest
-        Set<String> peerKeys = peerProcess.remotePeerInfoMap.keySet();
         Vector<RemotePeerInfo> interestedPeers = new Vector<>();
-        for (String key : peerKeys) {
-            RemotePeerInfo peerInfo = peerProcess.remotePeerInfoMap.get(key);
-            if (!key.equals(peerProcess.currentPeerID) && isPeerInterested(peerInfo)) {
+        for (RemotePeerInfo peerInfo : peerTable.getPeers()) {
+            if (peerInfo.getIndex() != peerProcess.currentPeerIndex && isPeerInterested(peerInfo)) {
                 interestedPeers.add(peerInfo);
             }
         }
@@ -35,16 +28,15 @@ public class OptimisticNeighborSelector extends TimerTask {
             // Choose a random peer from the interested ones
             Collections.shuffle(interestedPeers);
             RemotePeerInfo chosenPeer = interestedPeers.firstElement();
+            int slot = chosenPeer.getIndex();
             chosenPeer.setIsOptimisticallyUnchockedNeighbor(1);
-            peerProcess.optimisticUnchokedNeighbors.put(chosenPeer.getPeerId(), chosenPeer);
+            peerTable.getOptimisticNeighbors().add(slot);
             displayLog(peerProcess.currentPeerID + " optimistically unchoked neighbor " + chosenPeer.getPeerId());
 
-            if (chosenPeer.getIsChoked() == 1) {
-                // Send unchoke and have messages if the peer is choked
-                peerProcess.remotePeerInfoMap.get(chosenPeer.getPeerId()).setIsChoked(0);
-                sendUnchokeMsg(peerProcess.peerToSocketMap.get(chosenPeer.getPeerId()), chosenPeer.getPeerId());
-                sendHaveMsg(peerProcess.peerToSocketMap.get(chosenPeer.getPeerId()), chosenPeer.getPeerId());
-                peerProcess.remotePeerInfoMap.get(chosenPeer.getPeerId()).setPeerState(3);
+            if (chosenPeer.unchoke(3)) {
+                // Send unchoke and bitfield messages if the peer was choked and has not been unchoked by another thread
+                sendUnchokeMsg(peerTable.getConnection(slot), chosenPeer.getPeerId());
+                sendBitFieldMsg(peerTable.getConnection(slot), chosenPeer.getPeerId());
             }
         }
     }
@@ -55,41 +47,41 @@ public class OptimisticNeighborSelector extends TimerTask {
      * @return True if interested, false otherwise.
      */
     private boolean isPeerInterested(RemotePeerInfo peerInfo) {
-        return peerInfo.getIsComplete() == 0 &&
-                peerInfo.getIsChoked() == 1 && peerInfo.getIsInterested() == 1;
+        return peerInfo.isChokedAndInterested();
     }
 
     /**
      * Sends an unchoke message.
-     * @param socket The socket to send the message through.
+     * @param connection The connection to send the message through.
      * @param peerId The ID of the peer to send to.
      */
-    private void sendUnchokeMsg(Socket socket, String peerId) {
+    private void sendUnchokeMsg(PeerConnection connection, String peerId) {
         displayLog(peerProcess.currentPeerID + " sending UNCHOKE to Peer " + peerId);
-        BaseMsg msg = new BaseMsg(MsgConstants.MESSAGE_UNCHOKE);
-        sendMessage(socket, BaseMsg.convertMessageToByteArray(msg));
+        sendMessage(connection, MsgConstants.MESSAGE_UNCHOKE, null);
     }
 
     /**
-     * Sends a have message.
-     * @param socket The socket to send the message through.
+     * Sends a bitfield message, so that the unchoked peer re-evaluates its interest.
+     * @param connection The connection to send the message through.
      * @param peerId The ID of the peer to send to.
      */
-    private void sendHaveMsg(Socket socket, String peerId) {
-        displayLog(peerProcess.currentPeerID + " sending HAVE to Peer " + peerId);
-        byte[] bitFieldBytes = peerProcess.bitFieldMsg.getBytes();
-        BaseMsg msg = new BaseMsg(MsgConstants.MESSAGE_HAVE, bitFieldBytes);
-        sendMessage(socket, BaseMsg.convertMessageToByteArray(msg));
+    private void sendBitFieldMsg(PeerConnection connection, String peerId) {
+        displayLog(peerProcess.currentPeerID + " sending BITFIELD to Peer " + peerId);
+        sendMessage(connection, MsgConstants.MESSAGE_BITFIELD, peerProcess.bitFieldMsg.getBytes());
     }
 
     /**
-     * Writes a message to the socket.
-     * @param socket The socket to use.
-     * @param msgBytes The message in byte form.
+     * Writes a message to the connection.
+     * @param connection The connection to use.
+     * @param msgType The type of the message.
+     * @param payload The content of the message, null for messages without payload.
      */
-    private void sendMessage(Socket socket, byte[] msgBytes) {
-        try (OutputStream out = socket.getOutputStream()) {
-            out.write(msgBytes);
+    private void sendMessage(PeerConnection connection, byte msgType, byte[] payload) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.sendMessage(msgType, payload);
         } catch (IOException e) {
             // Exception handling
         }
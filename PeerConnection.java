@@ -0,0 +1,64 @@
+import java.io.IOException;
+
+/**
+ * Represents an established connection to a remote peer through which messages are sent.
+ */
+public interface PeerConnection {
+
+    /**
+     * Sends an encoded message to the remote peer. The message is written as a whole even when
+     * several threads send to the same peer.
+     *
+     * @param message - the message in byte form
+     * @throws IOException if the connection is broken
+     */
+    void send(byte[] message) throws IOException;
+
+    /**
+     * Encodes a message without payload into a buffer of the connection and sends it.
+     *
+     * @param messageType - type of the message
+     * @throws IOException if the connection is broken
+     */
+    default void sendMessage(byte messageType) throws IOException {
+        sendMessage(messageType, null);
+    }
+
+    /**
+     * Encodes a message into a buffer of the connection and sends it, without creating a BaseMsg
+     * or intermediate arrays.
+     *
+     * @param messageType - type of the message
+     * @param payload     - content of the message, null for messages without payload
+     * @throws IOException if the connection is broken
+     */
+    void sendMessage(byte messageType, byte[] payload) throws IOException;
+
+    /**
+     * Sends a message whose payload is a short prefix followed by a range of a piece of the shared file, such as
+     * a PIECE message. The data of the piece is taken from the piece store while the message is written.
+     *
+     * @param messageType - type of the message
+     * @param prefix      - beginning of the payload, written before the data of the piece
+     * @param pieceStore  - store holding the piece
+     * @param pieceIndex  - index of the piece
+     * @param offset      - position of the data within the piece
+     * @param length      - number of bytes of the piece to send
+     * @throws IOException if the connection is broken or the piece cannot be read
+     */
+    void sendFileMessage(byte messageType, byte[] prefix, PieceStore pieceStore, int pieceIndex, int offset, int length) throws IOException;
+
+    /**
+     * Closes the connection to the remote peer.
+     */
+    void close();
+
+    /**
+     * Waits until the messages sent so far have been written, ends the stream so that the remote peer reads every
+     * message before the end of the connection, and closes it.
+     *
+     * @param timeoutMillis - longest time to wait for the messages still queued
+     * @return true if every message has been written before the connection was closed
+     */
+    boolean closeGracefully(long timeoutMillis);
+}
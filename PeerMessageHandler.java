@@ -15,12 +15,18 @@ public class PeerMessageHandler implements Runnable {
     String ownPeerId;
     //The peerID of the remote host
     String remotePeerId;
+    //Remote peer, looked up once its handshake has arrived
+    private RemotePeerInfo remotePeerInfo;
     //The input stream of the socket
     private InputStream socketInputStream;
     //The output stream of the socket
     private OutputStream socketOutputStream;
     //The handshake message received
     private HandshakeMsg handshakeMessage;
+    //Connection through which messages are sent to the remote host
+    private SocketPeerConnection connection;
+    //Splits the received bytes into the handshake and messages
+    private final FrameDecoder frameDecoder = new FrameDecoder();
 
     /**
      * This constructor initializes the PeerMessage Handler object setting up the required fields
@@ -173,16 +179,13 @@ public class PeerMessageHandler implements Runnable {
     /**
      * This method is run everytime PeerMessageHandler thread is started.
      * It supports 2 types of connection - Active Connection : It performs initial handshake and bitfield messages sending to socket
-     * Passive Connection : It reads messages from socket and adds them to message queue.
+     * Passive Connection : It reads messages from socket and adds them to the inbound message pipeline.
      */
     @Override
     public void run() {
-        byte[] handShakeMessageInBytes = new byte[32];
-        byte[] dataBufferWithoutPayload = new byte[MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE];
-        byte[] messageLengthInBytes;
-        byte[] messageTypeInBytes;
-        MsgDetails messageDetails = new MsgDetails();
+        MsgDetails[] controlMessageDetails;
         try {
+            connection = new SocketPeerConnection(peerSocket);
             //Initial connection of file receivers. Sending handshake and bitfield message
             if (connType == MsgConstants.ACTIVE_CONNECTION) {
 
@@ -194,37 +197,39 @@ public class PeerMessageHandler implements Runnable {
                 }
 
                 while (true) {
-                    socketInputStream.read(handShakeMessageInBytes);
-                    handshakeMessage = HandshakeMsg.fromByteArray(handShakeMessageInBytes);
+                    if (!receiveHandshake())
+                        return;
                     if (handshakeMessage.getHeader().equals(MsgConstants.HANDSHAKE_HEADER)) {
                         remotePeerId = handshakeMessage.getPeerID();
+                        remotePeerInfo = peerProcess.peerTable.findPeer(remotePeerId);
+                        remotePeerInfo.setSupportsBlocks(ConfigSettings.blockSize > 0 && handshakeMessage.supportsBlockRequests());
                         logAndShowInConsole(ownPeerId + " makes a connection to Peer " + remotePeerId);
                         logAndShowInConsole(ownPeerId + " Received a HANDSHAKE message from Peer " + remotePeerId);
-                        //populate peerID to socket mapping
-                        peerProcess.peerToSocketMap.put(remotePeerId, this.peerSocket);
+                        //populate peerID to connection mapping
+                        peerProcess.peerTable.setConnection(remotePeerInfo.getIndex(), connection);
                         break;
                     }
                 }
 
                 // Sending BitField...
-                BaseMsg d = new BaseMsg(MsgConstants.MESSAGE_BITFIELD, peerProcess.bitFieldMsg.getBytes());
-                byte[] b = BaseMsg.convertMessageToByteArray(d);
-                socketOutputStream.write(b);
-                peerProcess.remotePeerInfoMap.get(remotePeerId).setPeerState(8);
+                connection.sendMessage(MsgConstants.MESSAGE_BITFIELD, peerProcess.bitFieldMsg.getBytes());
+                remotePeerInfo.setPeerState(8);
             }
 
-            //This type is used to send and receive messages and add received messages to message queue
+            //This type is used to send and receive messages and add received messages to the inbound message pipeline
             else {
                 while (true) {
-                    socketInputStream.read(handShakeMessageInBytes);
-                    handshakeMessage = HandshakeMsg.fromByteArray(handShakeMessageInBytes);
+                    if (!receiveHandshake())
+                        return;
                     if (handshakeMessage.getHeader().equals(MsgConstants.HANDSHAKE_HEADER)) {
                         remotePeerId = handshakeMessage.getPeerID();
+                        remotePeerInfo = peerProcess.peerTable.findPeer(remotePeerId);
+                        remotePeerInfo.setSupportsBlocks(ConfigSettings.blockSize > 0 && handshakeMessage.supportsBlockRequests());
                         logAndShowInConsole(ownPeerId + " is connected from Peer " + remotePeerId);
                         logAndShowInConsole(ownPeerId + " Received a HANDSHAKE message from Peer " + remotePeerId);
 
-                        //populate peerID to socket mapping
-                        peerProcess.peerToSocketMap.put(remotePeerId, this.peerSocket);
+                        //populate peerID to connection mapping
+                        peerProcess.peerTable.setConnection(remotePeerInfo.getIndex(), connection);
                         break;
                     } else {
                         continue;
@@ -238,60 +243,78 @@ public class PeerMessageHandler implements Runnable {
                     System.exit(0);
                 }
 
-                peerProcess.remotePeerInfoMap.get(remotePeerId).setPeerState(2);
+                remotePeerInfo.setPeerState(2);
             }
 
+            //Messages without payload are handed over in reused details, only messages with payload allocate
+            controlMessageDetails = MsgCodec.newControlMessageDetails(remotePeerInfo);
             while (true) {
-                int headerBytes = socketInputStream.read(dataBufferWithoutPayload);
-                if (headerBytes == -1)
+                BaseMsg message = receiveMessage();
+                if (message == null)
                     break;
-                messageLengthInBytes = new byte[MsgConstants.MESSAGE_LENGTH];
-                messageTypeInBytes = new byte[MsgConstants.MESSAGE_TYPE];
-                System.arraycopy(dataBufferWithoutPayload, 0, messageLengthInBytes, 0, MsgConstants.MESSAGE_LENGTH);
-                System.arraycopy(dataBufferWithoutPayload, MsgConstants.MESSAGE_LENGTH, messageTypeInBytes, 0, MsgConstants.MESSAGE_TYPE);
-                BaseMsg message = new BaseMsg();
-                message.setMessageLength(messageLengthInBytes);
-                message.setMessageType(messageTypeInBytes);
-                String messageType = message.getType();
-                if (messageType.equals(MsgConstants.MESSAGE_INTERESTED) || messageType.equals(MsgConstants.MESSAGE_NOT_INTERESTED) ||
-                        messageType.equals(MsgConstants.MESSAGE_CHOKE) || messageType.equals(MsgConstants.MESSAGE_UNCHOKE)) {
-                    messageDetails.setMessage(message);
-                    messageDetails.setSenderPeerID(remotePeerId);
-                    MsgQueue.enqueueMessage(messageDetails);
-                } else if (messageType.equals(MsgConstants.MESSAGE_DOWNLOADED)) {
-                    messageDetails.setMessage(message);
-                    messageDetails.setSenderPeerID(remotePeerId);
-                    int peerState = peerProcess.remotePeerInfoMap.get(remotePeerId).getPeerState();
-                    peerProcess.remotePeerInfoMap.get(remotePeerId).setPreviousPeerState(peerState);
-                    peerProcess.remotePeerInfoMap.get(remotePeerId).setPeerState(15);
-                    MsgQueue.enqueueMessage(messageDetails);
-                } else {
-                    int bytesAlreadyRead = 0;
-                    int bytesRead;
-                    byte[] dataBuffPayload = new byte[message.getMessageLengthAsInteger() - 1];
-                    while (bytesAlreadyRead < message.getMessageLengthAsInteger() - 1) {
-                        bytesRead = socketInputStream.read(dataBuffPayload, bytesAlreadyRead, message.getMessageLengthAsInteger() - 1 - bytesAlreadyRead);
-                        if (bytesRead == -1)
-                            return;
-                        bytesAlreadyRead += bytesRead;
-                    }
-
-                    byte[] dataBuffWithPayload = new byte[message.getMessageLengthAsInteger() + MsgConstants.MESSAGE_LENGTH];
-                    System.arraycopy(dataBufferWithoutPayload, 0, dataBuffWithPayload, 0, MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE);
-                    System.arraycopy(dataBuffPayload, 0, dataBuffWithPayload, MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE, dataBuffPayload.length);
-
-                    BaseMsg dataMsgWithPayload = BaseMsg.convertByteArrayToMessage(dataBuffWithPayload);
-                    messageDetails.setMessage(dataMsgWithPayload);
-                    messageDetails.setSenderPeerID(remotePeerId);
-                    MsgQueue.enqueueMessage(messageDetails);
-                    dataBuffWithPayload = null;
-                    dataBuffPayload = null;
-                    bytesAlreadyRead = 0;
-                    bytesRead = 0;
+                byte messageType = message.getType();
+                switch (messageType) {
+                    case MsgConstants.MESSAGE_CANCEL:
+                        //handled on arrival, so that the REQUEST messages for the piece still queued are skipped
+                        remotePeerInfo.cancelRequests(PeerUtils.bytesToInteger(message.getPayload()));
+                        break;
+                    case MsgConstants.MESSAGE_REQUEST:
+                    case MsgConstants.MESSAGE_REQUEST_BLOCK:
+                        remotePeerInfo.requestReceived(PeerUtils.bytesToInteger(message.getPayload()));
+                        peerProcess.inboundMsgPipeline.enqueueMessage(new MsgDetails(message, remotePeerInfo));
+                        break;
+                    case MsgConstants.MESSAGE_DOWNLOADED:
+                    case MsgConstants.MESSAGE_INTERESTED:
+                    case MsgConstants.MESSAGE_NOT_INTERESTED:
+                    case MsgConstants.MESSAGE_CHOKE:
+                    case MsgConstants.MESSAGE_UNCHOKE:
+                        peerProcess.inboundMsgPipeline.enqueueMessage(message.getPayload() == null
+                                ? controlMessageDetails[messageType - MsgConstants.MESSAGE_CHOKE]
+                                : new MsgDetails(message, remotePeerInfo));
+                        break;
+                    default:
+                        peerProcess.inboundMsgPipeline.enqueueMessage(new MsgDetails(message, remotePeerInfo));
+                        break;
                 }
             }
 
         } catch (Exception e) {
+        } finally {
+            if (remotePeerInfo != null) {
+                peerProcess.removePeerConnection(remotePeerInfo, connection);
+            }
+        }
+    }
+
+    /**
+     * This method reads from the socket until a complete handshake has been received and decodes it
+     * @return true - handshake received; false - the remote host closed the connection
+     * @throws IOException if the socket cannot be read
+     */
+    private boolean receiveHandshake() throws IOException {
+        while (!frameDecoder.hasCompleteHandshake()) {
+            if (frameDecoder.readFrom(socketInputStream) == -1)
+                return false;
+        }
+        handshakeMessage = frameDecoder.decodeHandshake();
+        return true;
+    }
+
+    /**
+     * This method reads from the socket until a complete message has been received and decodes it.
+     * Messages of unknown type are skipped.
+     * @return the message received, or null if the remote host closed the connection
+     * @throws IOException if the socket cannot be read or the message length is invalid
+     */
+    private BaseMsg receiveMessage() throws IOException {
+        while (true) {
+            while (!frameDecoder.hasCompleteFrame()) {
+                if (frameDecoder.readFrom(socketInputStream) == -1)
+                    return null;
+            }
+            BaseMsg message = frameDecoder.decodeFrame();
+            if (message != null)
+                return message;
         }
     }
 
@@ -303,7 +326,7 @@ public class PeerMessageHandler implements Runnable {
         boolean messageSent = false;
         try {
             HandshakeMsg handshakeMessage = new HandshakeMsg(MsgConstants.HANDSHAKE_HEADER, this.ownPeerId);
-            socketOutputStream.write(HandshakeMsg.toByteArray(handshakeMessage));
+            connection.send(HandshakeMsg.toByteArray(handshakeMessage));
             messageSent = true;
         } catch (IOException e) {
         }
@@ -1,20 +1,23 @@
-import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.net.Socket;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntUnaryOperator;
 
 /**
- * This class is used to process messages from message queue.
+ * This class is used to process messages from the inbound message pipeline.
  */
 public class PeerMessageProcessor implements Runnable {
 
     //PeerID of the host
     private static String currentPeerID;
-    //File to handle a piece
-    private RandomAccessFile randomAccessFile;
+    //Number of REQUEST messages sent in endgame mode for pieces already in flight to another peer
+    private static final AtomicLong endgameRequests = new AtomicLong();
+    //Number of CANCEL messages sent after the first copy of a piece requested twice arrived
+    private static final AtomicLong cancelsSent = new AtomicLong();
+    //Number of piece bytes received for pieces which were already present
+    private static final AtomicLong redundantBytes = new AtomicLong();
 
     /**
      * Constructor to initialize PeerMessageProcessingHandler object with peerID from arguments
@@ -34,235 +37,538 @@ public class PeerMessageProcessor implements Runnable {
 
     /**
      * This method runs everytime PeerMessageProcessingHandler thread is started.
-     * It reads messages from message queue and processes them. It sends the appropriate messages based on the type of message received.
+     * It reads messages from the inbound message pipeline and processes them. It sends the appropriate messages based on the type of message received.
      */
     @Override
     public void run() {
-        MsgDetails messageDetails;
-        BaseMsg message;
-        String messageType;
-        String remotePeerID;
-
         while (true) {
-            //Read message from queue
-            messageDetails = MsgQueue.dequeueMessage();
-            while (messageDetails == null) {
-                Thread.currentThread();
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                }
-                messageDetails = MsgQueue.dequeueMessage();
+            //Wait for the next message from the inbound pipeline
+            MsgDetails messageDetails;
+            try {
+                messageDetails = peerProcess.inboundMsgPipeline.takeMessage();
+            } catch (InterruptedException e) {
+                return;
             }
-            message = messageDetails.getMessage();
-            messageType = message.getType();
-            remotePeerID = messageDetails.getSenderPeerID();
-            int peerState = peerProcess.remotePeerInfoMap.get(remotePeerID).getPeerState();
-
-            if (messageType.equals(MsgConstants.MESSAGE_HAVE) && peerState != 14) {
-                //Received a interesting pieces message
-                logAndShowInConsole(currentPeerID + " contains interesting pieces from Peer " + remotePeerID);
-                if (isPeerInterested(message, remotePeerID)) {
-                    sendInterestedMessage(peerProcess.peerToSocketMap.get(remotePeerID), remotePeerID);
-                    peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(9);
+            processMessage(messageDetails);
+        }
+    }
+
+    /**
+     * This method processes a single message received from a remote peer and advances the state of that peer.
+     * Messages of one peer must be processed in the order they were received.
+     *
+     * @param messageDetails - message to be processed along with its sender
+     */
+    public void processMessage(MsgDetails messageDetails) {
+        BaseMsg message = messageDetails.getMessage();
+        byte messageType = message.getType();
+        //the sender is found by its slot, every lookup below is on the peer itself
+        RemotePeerInfo remotePeerInfo = peerProcess.peerTable.getPeer(messageDetails.getSenderIndex());
+        String remotePeerID = remotePeerInfo.getPeerId();
+        int peerState = remotePeerInfo.getPeerState();
+
+        if (messageType == MsgConstants.MESSAGE_DOWNLOADED) {
+            //update neighbor details after it gets file completely
+            logAndShowInConsole(remotePeerID + " has downloaded the complete file");
+            markPeerComplete(remotePeerInfo);
+        } else if (messageType == MsgConstants.MESSAGE_HAVE
+                || (messageType == MsgConstants.MESSAGE_BITFIELD && peerState != 2 && peerState != 8)) {
+            //Received a single piece announcement, or the full bitfield resent when the remote peer unchokes us
+            logAndShowInConsole(currentPeerID + " contains interesting pieces from Peer " + remotePeerID);
+            if (isPeerInterested(message, remotePeerInfo)) {
+                sendInterestedMessage(connectionOf(remotePeerInfo), remotePeerID);
+                if (peerState == 11) {
+                    //already unchoked and downloading, the new pieces only extend the request window
+                    fillRequestWindow(remotePeerInfo);
                 } else {
-                    sendNotInterestedMessage(peerProcess.peerToSocketMap.get(remotePeerID), remotePeerID);
-                    peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(13);
+                    remotePeerInfo.compareAndSetPeerState(peerState, 9);
                 }
             } else {
-                if (peerState == 2) {
-                    if (messageType.equals(MsgConstants.MESSAGE_BITFIELD)) {
+                sendNotInterestedMessage(connectionOf(remotePeerInfo), remotePeerID);
+                releaseRequests(remotePeerInfo);
+                remotePeerInfo.compareAndSetPeerState(peerState, 13);
+            }
+        } else if (messageType == MsgConstants.MESSAGE_PIECE_STORED) {
+            //the disk writer has stored a piece sent by this peer, it is checked and announced by this actor
+            byte[] payload = message.getPayload();
+            onPieceStored(MsgCodec.getInt(payload, 0), remotePeerInfo, payload[MsgConstants.PIECE_INDEX_LENGTH] != 0);
+        } else if (messageType == MsgConstants.MESSAGE_PIECE_VERIFIED) {
+            //the verifier has checked a piece sent by this peer against its digest
+            byte[] payload = message.getPayload();
+            onPieceVerified(MsgCodec.getInt(payload, 0), remotePeerInfo, payload[MsgConstants.PIECE_INDEX_LENGTH] != 0);
+        } else if (messageType == MsgConstants.MESSAGE_PIECES_RELEASED) {
+            //requests to another peer timed out or were discarded, their pieces may be requested from this peer now
+            if (peerState == 11 && !fillRequestWindow(remotePeerInfo)) {
+                remotePeerInfo.compareAndSetPeerState(11, 13);
+            }
+        } else if (messageType == MsgConstants.MESSAGE_PIECE || messageType == MsgConstants.MESSAGE_BLOCK) {
+            //Received piece message, pieces of requests sent before a state change are kept as well
+            if (messageType == MsgConstants.MESSAGE_PIECE) {
+                receivePiece(message, remotePeerInfo);
+            } else {
+                receiveBlock(message, remotePeerInfo);
+            }
+            if (peerState == 11 && !fillRequestWindow(remotePeerInfo)) {
+                remotePeerInfo.compareAndSetPeerState(11, 13);
+            }
+        } else if (isRequest(messageType)) {
+            //requests are served while the peer is unchoked, also when we are downloading from it at the same time
+            int pieceIndex = PeerUtils.bytesToInteger(message.getPayload());
+            if (remotePeerInfo.takeRequest(pieceIndex)) {
+                logAndShowInConsole(currentPeerID + " skips the REQUEST for piece " + pieceIndex + " cancelled by Peer " + remotePeerID);
+            } else if (remotePeerInfo.getIsChoked() == 0) {
+                serveRequest(message, remotePeerInfo, peerState);
+            }
+        } else {
+            switch (peerState) {
+                case 2:
+                    if (messageType == MsgConstants.MESSAGE_BITFIELD) {
                         //Received bitfield message
                         logAndShowInConsole(currentPeerID + " received a BITFIELD message from Peer " + remotePeerID);
-                        sendBitFieldMessage(peerProcess.peerToSocketMap.get(remotePeerID), remotePeerID);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(3);
+                        updatePeerBitField(message, remotePeerInfo);
+                        sendBitFieldMessage(connectionOf(remotePeerInfo), remotePeerID);
+                        remotePeerInfo.compareAndSetPeerState(2, 3);
                     }
-                } else if (peerState == 3) {
-                    if (messageType.equals(MsgConstants.MESSAGE_INTERESTED)) {
+                    break;
+                case 3:
+                    if (messageType == MsgConstants.MESSAGE_INTERESTED) {
                         //Received interested message
                         logAndShowInConsole(currentPeerID + " receieved an INTERESTED message from Peer " + remotePeerID);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setIsInterested(1);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setIsHandShaked(1);
+                        remotePeerInfo.recordInterest(true);
                         //check if the neighbor is in unchoked neighbors or optimistically unchoked neighbors list
-                        if (isNotPreferredAndUnchokedNeighbour(remotePeerID)) {
-                            sendChokedMessage(peerProcess.peerToSocketMap.get(remotePeerID), remotePeerID);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setIsChoked(1);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(6);
-                        } else {
-                            sendUnChokedMessage(peerProcess.peerToSocketMap.get(remotePeerID), remotePeerID);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setIsChoked(0);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(4);
+                        if (isNotPreferredAndUnchokedNeighbour(remotePeerInfo)) {
+                            if (remotePeerInfo.choke(3, 6)) {
+                                sendChokedMessage(connectionOf(remotePeerInfo), remotePeerID);
+                            }
+                        } else if (remotePeerInfo.forceUnchoke(3, 4)) {
+                            sendUnChokedMessage(connectionOf(remotePeerInfo), remotePeerID);
                         }
-                    } else if (messageType.equals(MsgConstants.MESSAGE_NOT_INTERESTED)) {
+                    } else if (messageType == MsgConstants.MESSAGE_NOT_INTERESTED) {
                         //Received not interested message
                         logAndShowInConsole(currentPeerID + " receieved an NOT INTERESTED message from Peer " + remotePeerID);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setIsInterested(0);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setIsHandShaked(1);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(5);
-                    }
-                } else if (peerState == 4) {
-                    if (messageType.equals(MsgConstants.MESSAGE_REQUEST)) {
-                        //Received request message
-                        //send file piece to the requestor
-                        sendFilePiece(peerProcess.peerToSocketMap.get(remotePeerID), message, remotePeerID);
-
-                        Set<String> remotePeerDetailsKeys = peerProcess.remotePeerInfoMap.keySet();
-                        if (!peerProcess.initialFilePeer && peerProcess.bitFieldMsg.isFileDownloadComplete()) {
-                            for (String key : remotePeerDetailsKeys) {
-                                if (!key.equals(peerProcess.currentPeerID)) {
-                                    Socket socket = peerProcess.peerToSocketMap.get(key);
-                                    if (socket != null) {
-                                        sendDownloadCompleteMessage(socket, key);
-                                    }
-                                }
-                            }
-                        }
-                        if (isNotPreferredAndUnchokedNeighbour(remotePeerID)) {
-                            //sending choked message if the neighbor is not in unchoked neighbors or optimistically unchoked neighbors list
-                            sendChokedMessage(peerProcess.peerToSocketMap.get(remotePeerID), remotePeerID);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setIsChoked(1);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(6);
-                        }
+                        remotePeerInfo.recordInterest(false);
+                        remotePeerInfo.compareAndSetPeerState(3, 5);
                     }
-                } else if (peerState == 8) {
-                    if (messageType.equals(MsgConstants.MESSAGE_BITFIELD)) {
+                    break;
+                case 8:
+                    if (messageType == MsgConstants.MESSAGE_BITFIELD) {
                         //Received bifield message
-                        if (isPeerInterested(message, remotePeerID)) {
-                            sendInterestedMessage(peerProcess.peerToSocketMap.get(remotePeerID), remotePeerID);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(9);
+                        if (isPeerInterested(message, remotePeerInfo)) {
+                            sendInterestedMessage(connectionOf(remotePeerInfo), remotePeerID);
+                            remotePeerInfo.compareAndSetPeerState(8, 9);
                         } else {
-                            sendNotInterestedMessage(peerProcess.peerToSocketMap.get(remotePeerID), remotePeerID);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(13);
+                            sendNotInterestedMessage(connectionOf(remotePeerInfo), remotePeerID);
+                            remotePeerInfo.compareAndSetPeerState(8, 13);
                         }
                     }
-                } else if (peerState == 9) {
-                    if (messageType.equals(MsgConstants.MESSAGE_CHOKE)) {
-                        //Received choke message
-                        logAndShowInConsole(currentPeerID + " is CHOKED by Peer " + remotePeerID);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setIsChoked(1);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(14);
-                    } else if (messageType.equals(MsgConstants.MESSAGE_UNCHOKE)) {
+                    break;
+                case 9:
+                    if (messageType == MsgConstants.MESSAGE_CHOKE) {
+                        onChoked(remotePeerInfo, 9);
+                    } else if (messageType == MsgConstants.MESSAGE_UNCHOKE) {
                         //Received unchoke message
                         logAndShowInConsole(currentPeerID + " is UNCHOKED by Peer " + remotePeerID);
-                        //get the piece index which is present in remote peer but not in current peer and send a request message
-                        int firstDifferentPieceIndex = getFirstDifferentPieceIndex(remotePeerID);
-                        if (firstDifferentPieceIndex == -1) {
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(13);
+                        //request the pieces which are present in remote peer but not in current peer
+                        if (fillRequestWindow(remotePeerInfo)) {
+                            remotePeerInfo.compareAndSetPeerState(9, 11);
                         } else {
-                            sendRequestMessage(peerProcess.peerToSocketMap.get(remotePeerID), firstDifferentPieceIndex, remotePeerID);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(11);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setStartTime(new Date());
+                            remotePeerInfo.compareAndSetPeerState(9, 13);
                         }
                     }
-                } else if (peerState == 11) {
-                    if (messageType.equals(MsgConstants.MESSAGE_CHOKE)) {
-                        //Received choke message
-                        logAndShowInConsole(currentPeerID + " is CHOKED by Peer " + remotePeerID);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setIsChoked(1);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(14);
-                    } else if (messageType.equals(MsgConstants.MESSAGE_PIECE)) {
-                        //Received piece message
-                        byte[] payloadInBytes = message.getPayload();
-                        //compute data downloading rate of the peer
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setEndTime(new Date());
-                        long totalTime = peerProcess.remotePeerInfoMap.get(remotePeerID).getEndTime().getTime()
-                                - peerProcess.remotePeerInfoMap.get(remotePeerID).getStartTime().getTime();
-                        double dataRate = ((double) (payloadInBytes.length + MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE) / (double) totalTime) * 100;
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setDataRate(dataRate);
-                        FilePiece filePiece = FilePiece.fromByteArray(payloadInBytes);
-                        //update the piece information in current peer bitfield
-                        peerProcess.bitFieldMsg.updateBitFieldInfo(remotePeerID, filePiece);
-                        int firstDifferentPieceIndex = getFirstDifferentPieceIndex(remotePeerID);
-                        if (firstDifferentPieceIndex == -1) {
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(13);
-                        } else {
-                            sendRequestMessage(peerProcess.peerToSocketMap.get(remotePeerID), firstDifferentPieceIndex, remotePeerID);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(11);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setStartTime(new Date());
-                        }
-
-                        peerProcess.updateOtherPeerDetails();
-                        Set<String> remotePeerDetailsKeys = peerProcess.remotePeerInfoMap.keySet();
-                        for (String key : remotePeerDetailsKeys) {
-                            RemotePeerInfo peerDetails = peerProcess.remotePeerInfoMap.get(key);
-                            //send have message to peer if its interested
-                            if (!key.equals(peerProcess.currentPeerID) && hasPeerInterested(peerDetails)) {
-                                sendHaveMessage(peerProcess.peerToSocketMap.get(key), key);
-                                peerProcess.remotePeerInfoMap.get(key).setPeerState(3);
-                            }
-                        }
-
-                        payloadInBytes = null;
-                        message = null;
-                        if (!peerProcess.initialFilePeer && peerProcess.bitFieldMsg.isFileDownloadComplete()) {
-                            for (String key : remotePeerDetailsKeys) {
-                                RemotePeerInfo peerDetails = peerProcess.remotePeerInfoMap.get(key);
-                                if (!key.equals(peerProcess.currentPeerID)) {
-                                    Socket socket = peerProcess.peerToSocketMap.get(key);
-                                    if (socket != null) {
-                                        sendDownloadCompleteMessage(socket, key);
-                                    }
-                                }
-                            }
-                        }
+                    break;
+                case 11:
+                    if (messageType == MsgConstants.MESSAGE_CHOKE) {
+                        onChoked(remotePeerInfo, 11);
                     }
-                } else if (peerState == 14) {
-                    if (messageType.equals(MsgConstants.MESSAGE_HAVE)) {
-                        //Received contains interesting pieces
-                        logAndShowInConsole(currentPeerID + " contains interesting pieces from Peer " + remotePeerID);
-                        if (isPeerInterested(message, remotePeerID)) {
-                            sendInterestedMessage(peerProcess.peerToSocketMap.get(remotePeerID), remotePeerID);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(9);
-                        } else {
-                            sendNotInterestedMessage(peerProcess.peerToSocketMap.get(remotePeerID), remotePeerID);
-                            peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(13);
-                        }
-                    } else if (messageType.equals(MsgConstants.MESSAGE_UNCHOKE)) {
+                    break;
+                case 14:
+                    if (messageType == MsgConstants.MESSAGE_UNCHOKE) {
                         //Received unchoked message
                         logAndShowInConsole(currentPeerID + " is UNCHOKED by Peer " + remotePeerID);
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(14);
-                    }
-                } else if (peerState == 15) {
-                    try {
-                        //update neighbor details after it gets file completely
-                        peerProcess.remotePeerInfoMap.get(peerProcess.currentPeerID).updatePeerDetails(remotePeerID, 1);
-                        logAndShowInConsole(remotePeerID + " has downloaded the complete file");
-                        int previousState = peerProcess.remotePeerInfoMap.get(remotePeerID).getPreviousPeerState();
-                        peerProcess.remotePeerInfoMap.get(remotePeerID).setPeerState(previousState);
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                        remotePeerInfo.compareAndSetPeerState(14, 14);
                     }
-                }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * This method is used to serve a REQUEST message by sending the requested piece or block
+     *
+     * @param message        - REQUEST message received
+     * @param remotePeerInfo - the requesting peer
+     * @param peerState      - state of the requesting peer when the message was taken up
+     */
+    private void serveRequest(BaseMsg message, RemotePeerInfo remotePeerInfo, int peerState) {
+        String remotePeerID = remotePeerInfo.getPeerId();
+        if (message.getType() == MsgConstants.MESSAGE_REQUEST_BLOCK) {
+            //send the requested block of the piece to the requestor
+            sendBlock(connectionOf(remotePeerInfo), message, remotePeerID);
+        } else {
+            //send file piece to the requestor
+            sendFilePiece(connectionOf(remotePeerInfo), message, remotePeerID);
+        }
+
+        if (!peerProcess.initialFilePeer && peerProcess.bitFieldMsg.isFileDownloadComplete()) {
+            sendDownloadCompleteMessages();
+        }
+        if (isNotPreferredAndUnchokedNeighbour(remotePeerInfo)) {
+            //sending choked message if the neighbor is not in unchoked neighbors or optimistically unchoked neighbors list,
+            //a peer we are downloading from keeps its download state
+            int chokedState = peerState == 3 || peerState == 4 ? 6 : peerState;
+            if (remotePeerInfo.choke(peerState, chokedState)) {
+                sendChokedMessage(connectionOf(remotePeerInfo), remotePeerID);
+            }
+        }
+    }
+
+    /**
+     * This method is used to handle a CHOKE message. The remote peer discards the requests it has not answered yet.
+     *
+     * @param remotePeerInfo - the choking peer
+     * @param peerState      - state of the choking peer when the message was taken up
+     */
+    private void onChoked(RemotePeerInfo remotePeerInfo, int peerState) {
+        String remotePeerID = remotePeerInfo.getPeerId();
+        logAndShowInConsole(currentPeerID + " is CHOKED by Peer " + remotePeerID);
+        remotePeerInfo.choke(peerState, 14);
+        releaseRequests(remotePeerInfo);
+    }
+
+    /**
+     * This method is used to drop the requests in flight to a remote peer and have their pieces requested from the
+     * other peers
+     *
+     * @param remotePeerInfo - the remote peer
+     */
+    private void releaseRequests(RemotePeerInfo remotePeerInfo) {
+        RequestWindow requestWindow = remotePeerInfo.getRequestWindow();
+        List<Integer> releasedPieces = requestWindow.clear();
+        if (!releasedPieces.isEmpty()) {
+            peerProcess.piecePicker.release(remotePeerInfo, releasedPieces);
+            RequestTimeoutMonitor.requestReleasedPieces(remotePeerInfo);
+        }
+    }
+
+    /**
+     * This method is used to send REQUEST messages for pieces present in the remote peer but not in the current peer
+     * until the request window of the remote peer is full. Pieces are picked rarest first and reserved for the peer.
+     * In endgame mode pieces in flight to other peers are requested too.
+     * Nothing is requested while the disk writer is behind, the peers are asked to refill once it has caught up.
+     *
+     * @param remotePeerInfo - the remote peer
+     * @return true - requests are in flight or wait for the disk; false - nothing left to request from the remote peer
+     */
+    private boolean fillRequestWindow(RemotePeerInfo remotePeerInfo) {
+        RequestWindow requestWindow = remotePeerInfo.getRequestWindow();
+        BitFieldMessage remoteBitField = remotePeerInfo.getBitFieldMessage();
+        if (remoteBitField == null)
+            return !requestWindow.isEmpty();
+        if (!peerProcess.diskWriter.hasRoom())
+            return true;
+        if (requestWindow.isEmpty())
+            remotePeerInfo.setStartTime(new Date());
+
+        //rarest pieces first, so that the pieces few peers have spread before those peers leave. A piece or block in
+        //flight to another peer is never picked, so nothing is downloaded twice
+        PiecePicker piecePicker = peerProcess.piecePicker;
+        boolean blockRequests = remotePeerInfo.supportsBlocks();
+        while (requestWindow.hasRoom()) {
+            int requestKey = blockRequests ? piecePicker.reserveBlock(remoteBitField, remotePeerInfo.getIndex())
+                    : piecePicker.reservePiece(remoteBitField, remotePeerInfo.getIndex());
+            if (requestKey == -1)
+                break;
+            sendRequest(remotePeerInfo, requestKey);
+        }
+
+        //endgame: the few pieces still missing are all in flight, so the pieces in flight to other peers are requested
+        //from this peer as well and the slowest peer no longer holds up the end of the download
+        if (requestWindow.hasRoom() && peerProcess.bitFieldMsg.getNumPiecesMissing() <= ConfigSettings.endgameThreshold) {
+            while (requestWindow.hasRoom()) {
+                int requestKey = blockRequests ? piecePicker.pickEndgameBlock(remoteBitField, requestWindow::isOutstanding)
+                        : piecePicker.pickEndgamePiece(remoteBitField, requestWindow::isOutstanding);
+                if (requestKey == -1)
+                    break;
+                endgameRequests.incrementAndGet();
+                sendRequest(remotePeerInfo, requestKey);
+            }
+        }
+        return !requestWindow.isEmpty();
+    }
+
+    /**
+     * This method is used to send the REQUEST message for a piece, or for a block to peers supporting block requests
+     *
+     * @param remotePeerInfo - peer to which the request should be sent
+     * @param requestKey     - index of the piece, or number of the block
+     */
+    private void sendRequest(RemotePeerInfo remotePeerInfo, int requestKey) {
+        String remotePeerID = remotePeerInfo.getPeerId();
+        remotePeerInfo.getRequestWindow().requestSent(requestKey);
+        if (remotePeerInfo.supportsBlocks()) {
+            sendBlockRequestMessage(connectionOf(remotePeerInfo), requestKey, remotePeerID);
+        } else {
+            sendRequestMessage(connectionOf(remotePeerInfo), requestKey, remotePeerID);
+        }
+    }
+
+    /**
+     * This method is used to update the data downloading rate of a peer from which data has arrived
+     *
+     * @param remotePeerInfo - peer which sent the data
+     * @param payloadLength  - length of the message received
+     */
+    private void updateDataRate(RemotePeerInfo remotePeerInfo, int payloadLength) {
+        //compute data downloading rate of the peer, pieces in flight arrive one after another
+        remotePeerInfo.setEndTime(new Date());
+        long totalTime = Math.max(1, remotePeerInfo.getEndTime().getTime() - remotePeerInfo.getStartTime().getTime());
+        double dataRate = ((double) (payloadLength + MsgConstants.MESSAGE_LENGTH + MsgConstants.MESSAGE_TYPE) / (double) totalTime) * 100;
+        remotePeerInfo.setDataRate(dataRate);
+        remotePeerInfo.setStartTime(remotePeerInfo.getEndTime());
+    }
+
+    /**
+     * This method is used to store a received piece and announce it to the interested peers
+     *
+     * @param message        - PIECE message received
+     * @param remotePeerInfo - peer which sent the piece
+     */
+    private void receivePiece(BaseMsg message, RemotePeerInfo remotePeerInfo) {
+        String remotePeerID = remotePeerInfo.getPeerId();
+        byte[] payloadInBytes = message.getPayload();
+        updateDataRate(remotePeerInfo, payloadInBytes.length);
+        FilePiece filePiece = FilePiece.fromByteArray(payloadInBytes);
+        int pieceIndex = filePiece.getIndex();
+        remotePeerInfo.getRequestWindow().pieceReceived(pieceIndex, payloadInBytes.length);
+        if (pieceIndex < 0 || pieceIndex >= peerProcess.bitFieldMsg.getNumPieces()
+                || filePiece.getData().length != PieceStore.pieceLength(pieceIndex)) {
+            logAndShowInConsole(currentPeerID + " received an invalid piece " + pieceIndex + " from Peer " + remotePeerID);
+            return;
+        }
+        if (peerProcess.piecePicker.pieceReceived(pieceIndex) == PiecePicker.BLOCK_DUPLICATE) {
+            redundantBytes.addAndGet(filePiece.getData().length);
+            return;
+        }
+        //the piece is announced by this actor once the disk writer has stored it
+        peerProcess.diskWriter.write(pieceIndex, 0, filePiece.getData(), 0, filePiece.getData().length,
+                stored -> postPieceResult(MsgConstants.MESSAGE_PIECE_STORED, pieceIndex, remotePeerInfo, stored));
+    }
+
+    /**
+     * This method is used to store a received block at its position in the file. The piece is announced to the
+     * interested peers once its last block has been stored.
+     *
+     * @param message        - BLOCK message received
+     * @param remotePeerInfo - peer which sent the block
+     */
+    private void receiveBlock(BaseMsg message, RemotePeerInfo remotePeerInfo) {
+        String remotePeerID = remotePeerInfo.getPeerId();
+        PiecePicker piecePicker = peerProcess.piecePicker;
+        byte[] payloadInBytes = message.getPayload();
+        int headerLength = MsgConstants.PIECE_INDEX_LENGTH + MsgConstants.BLOCK_OFFSET_LENGTH;
+        if (payloadInBytes.length < headerLength)
+            return;
+        int pieceIndex = MsgCodec.getInt(payloadInBytes, 0);
+        int offset = MsgCodec.getInt(payloadInBytes, MsgConstants.PIECE_INDEX_LENGTH);
+        int length = payloadInBytes.length - headerLength;
+        int blockId = pieceIndex * piecePicker.getBlocksPerPiece() + offset / ConfigSettings.blockSize;
+        if (pieceIndex < 0 || pieceIndex >= peerProcess.bitFieldMsg.getNumPieces() || offset < 0
+                || piecePicker.pieceOf(blockId) != pieceIndex || piecePicker.blockOffset(blockId) != offset
+                || piecePicker.blockLength(blockId) != length) {
+            logAndShowInConsole(currentPeerID + " received an invalid block of piece " + pieceIndex + " from Peer " + remotePeerID);
+            return;
+        }
+        updateDataRate(remotePeerInfo, payloadInBytes.length);
+        remotePeerInfo.getRequestWindow().pieceReceived(blockId, length);
+
+        int result = piecePicker.blockReceived(blockId);
+        if (result == PiecePicker.BLOCK_DUPLICATE) {
+            redundantBytes.addAndGet(length);
+            return;
+        }
+        //blocks are written in the order they arrive, so the piece is stored once its last block is
+        DiskWriter.CompletionListener listener = result == PiecePicker.PIECE_ASSEMBLED
+                ? stored -> postPieceResult(MsgConstants.MESSAGE_PIECE_STORED, pieceIndex, remotePeerInfo, stored) : null;
+        peerProcess.diskWriter.write(pieceIndex, offset, payloadInBytes, headerLength, length, listener);
+    }
+
+    /**
+     * This method is used to hand the outcome of storing or verifying a piece over to the actor of the peer which sent
+     * it, so that the piece is announced by that actor and not on the thread which stored or verified it.
+     *
+     * @param messageType    - type of the local message carrying the outcome
+     * @param pieceIndex     - index of the piece
+     * @param remotePeerInfo - peer which sent the piece, or its last block
+     * @param result         - outcome for the piece
+     */
+    private static void postPieceResult(byte messageType, int pieceIndex, RemotePeerInfo remotePeerInfo, boolean result) {
+        byte[] payload = new byte[MsgConstants.PIECE_INDEX_LENGTH + 1];
+        MsgCodec.putInt(payload, 0, pieceIndex);
+        payload[MsgConstants.PIECE_INDEX_LENGTH] = (byte) (result ? 1 : 0);
+        BaseMsg message = new BaseMsg();
+        message.setMessageType(messageType);
+        message.setMessageLength(MsgConstants.MESSAGE_TYPE + payload.length);
+        message.setPayload(payload);
+        peerProcess.inboundMsgPipeline.postLocalMessage(new MsgDetails(message, remotePeerInfo));
+    }
+
+    /**
+     * This method is called by the actor of a peer once a piece it sent has been stored. The piece is checked against
+     * its digest, or downloaded again if it could not be written.
+     *
+     * @param pieceIndex     - index of the piece
+     * @param remotePeerInfo - peer which sent the piece, or its last block
+     * @param stored         - true if the piece has been stored
+     */
+    private void onPieceStored(int pieceIndex, RemotePeerInfo remotePeerInfo, boolean stored) {
+        if (!stored) {
+            logAndShowInConsole(currentPeerID + " could not store piece " + pieceIndex + ", it will be downloaded again");
+            downloadPieceAgain(pieceIndex);
+        } else if (peerProcess.metaInfo == null) {
+            onPieceVerified(pieceIndex, remotePeerInfo, true);
+        } else {
+            peerProcess.pieceVerifier.verify(pieceIndex, peerProcess.metaInfo,
+                    valid -> postPieceResult(MsgConstants.MESSAGE_PIECE_VERIFIED, pieceIndex, remotePeerInfo, valid));
+        }
+    }
+
+    /**
+     * This method is called by the actor of a peer once a piece it sent has been checked against its digest. A valid
+     * piece is marked present and announced, a corrupt one is downloaded again.
+     *
+     * @param pieceIndex     - index of the piece
+     * @param remotePeerInfo - peer which sent the piece, or its last block
+     * @param valid          - true if the piece matches its digest
+     */
+    private void onPieceVerified(int pieceIndex, RemotePeerInfo remotePeerInfo, boolean valid) {
+        String remotePeerID = remotePeerInfo.getPeerId();
+        if (!valid) {
+            logAndShowInConsole(currentPeerID + " received a corrupt piece " + pieceIndex + " from Peer " + remotePeerID + ", it will be downloaded again");
+            downloadPieceAgain(pieceIndex);
+        } else if (peerProcess.bitFieldMsg.markPieceReceived(remotePeerID, pieceIndex)) {
+            peerProcess.pieceJournal.recordPiece(pieceIndex);
+            onPieceReceived(pieceIndex, remotePeerInfo);
+        }
+    }
+
+    /**
+     * This method is used to release a piece which could not be stored or is corrupt, so that it is requested again.
+     *
+     * @param pieceIndex - index of the piece
+     */
+    private void downloadPieceAgain(int pieceIndex) {
+        peerProcess.piecePicker.discardPiece(pieceIndex);
+        RequestTimeoutMonitor.requestReleasedPieces(null);
+    }
+
+    /**
+     * This method is used to announce a piece which has been received to the interested peers
+     *
+     * @param pieceIndex     - index of the piece received
+     * @param remotePeerInfo - peer which sent the piece
+     */
+    private void onPieceReceived(int pieceIndex, RemotePeerInfo remotePeerInfo) {
+        cancelDuplicateRequests(pieceIndex, remotePeerInfo);
+
+        for (RemotePeerInfo peerDetails : peerProcess.peerTable.getPeers()) {
+            //send have message to peer if its interested
+            if (peerDetails.getIndex() != peerProcess.currentPeerIndex && hasPeerInterested(peerDetails)) {
+                sendHaveMessage(connectionOf(peerDetails), peerDetails.getPeerId(), pieceIndex);
+            }
+        }
+
+        if (!peerProcess.initialFilePeer && peerProcess.bitFieldMsg.isFileDownloadComplete()) {
+            logAndShowInConsole(currentPeerID + " sent " + endgameRequests.get() + " endgame REQUEST messages and "
+                    + cancelsSent.get() + " CANCEL messages, " + redundantBytes.get() + " redundant bytes were received");
+            sendDownloadCompleteMessages();
+            //recorded once the other peers have been told, so that the shutdown drains the DOWNLOADED messages
+            peerProcess.peerTable.getPeer(peerProcess.currentPeerIndex).markComplete();
+            peerProcess.checkSwarmCompletion();
+        }
+    }
+
+    /**
+     * This method is used to cancel the requests for a piece sent to other peers once the piece has arrived
+     *
+     * @param pieceIndex     - index of the piece received
+     * @param remotePeerInfo - peer which sent the piece
+     */
+    private void cancelDuplicateRequests(int pieceIndex, RemotePeerInfo remotePeerInfo) {
+        for (RemotePeerInfo peerDetails : peerProcess.peerTable.getPeers()) {
+            IntUnaryOperator pieceOfRequest = peerDetails.supportsBlocks() ? peerProcess.piecePicker::pieceOf : requestKey -> requestKey;
+            if (peerDetails != remotePeerInfo && peerDetails.getRequestWindow().cancelPiece(pieceOfRequest, pieceIndex)) {
+                sendCancelMessage(connectionOf(peerDetails), peerDetails.getPeerId(), pieceIndex);
             }
         }
     }
 
     /**
-     * This method is used to send DOWNLOAD COMPLETE message to socket
+     * This method is used to send CANCEL message to connection
      *
-     * @param socket - socket in which the message to be sent
+     * @param connection - connection through which the message to be sent
+     * @param peerID     - peerID to which the message should be sent
+     * @param pieceIndex - index of the piece no longer needed
+     */
+    private void sendCancelMessage(PeerConnection connection, String peerID, int pieceIndex) {
+        logAndShowInConsole(currentPeerID + " sending a CANCEL message to Peer " + peerID + " for piece " + pieceIndex);
+        cancelsSent.incrementAndGet();
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_CANCEL, PeerUtils.integerToBytes(pieceIndex));
+    }
+
+    /**
+     * @return number of REQUEST messages sent in endgame mode for pieces already in flight to another peer
+     */
+    public static long getEndgameRequests() {
+        return endgameRequests.get();
+    }
+
+    /**
+     * @return number of CANCEL messages sent
+     */
+    public static long getCancelsSent() {
+        return cancelsSent.get();
+    }
+
+    /**
+     * @return number of piece bytes received for pieces which were already present
+     */
+    public static long getRedundantBytes() {
+        return redundantBytes.get();
+    }
+
+    /**
+     * This method is used to send DOWNLOAD COMPLETE message to every connected peer
+     */
+    private void sendDownloadCompleteMessages() {
+        for (RemotePeerInfo peerDetails : peerProcess.peerTable.getPeers()) {
+            PeerConnection connection = connectionOf(peerDetails);
+            if (peerDetails.getIndex() != peerProcess.currentPeerIndex && connection != null) {
+                sendDownloadCompleteMessage(connection, peerDetails.getPeerId());
+            }
+        }
+    }
+
+    /**
+     * This method is used to send DOWNLOAD COMPLETE message to connection
+     *
+     * @param connection - connection through which the message to be sent
      * @param peerID - peerID to which the message should be sent
      */
-    private void sendDownloadCompleteMessage(Socket socket, String peerID) {
+    private void sendDownloadCompleteMessage(PeerConnection connection, String peerID) {
         logAndShowInConsole(currentPeerID + " sending a DOWNLOAD COMPLETE message to Peer " + peerID);
-        BaseMsg message = new BaseMsg(MsgConstants.MESSAGE_DOWNLOADED);
-        byte[] messageInBytes = BaseMsg.convertMessageToByteArray(message);
-        SendMessageToSocket(socket, messageInBytes);
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_DOWNLOADED, null);
     }
 
     /**
-     * This method is used to send HAVE message to socket
+     * This method is used to send HAVE message to connection
      *
-     * @param socket - socket in which the message to be sent
+     * @param connection - connection through which the message to be sent
      * @param peerID - peerID to which the message should be sent
+     * @param pieceIndex - index of the piece received
      */
-    private void sendHaveMessage(Socket socket, String peerID) {
+    private void sendHaveMessage(PeerConnection connection, String peerID, int pieceIndex) {
         //logAndShowInConsole(peerProcess.currentPeerID + " sending HAVE message to Peer " + peerID);
-        byte[] bitFieldInBytes = peerProcess.bitFieldMsg.getBytes();
-        BaseMsg message = new BaseMsg(MsgConstants.MESSAGE_HAVE, bitFieldInBytes);
-        SendMessageToSocket(socket, BaseMsg.convertMessageToByteArray(message));
-
-        bitFieldInBytes = null;
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_HAVE, PeerUtils.integerToBytes(pieceIndex));
     }
 
     /**
@@ -272,193 +578,258 @@ public class PeerMessageProcessor implements Runnable {
      * @return true - peer interested; false peer not interested
      */
     private boolean hasPeerInterested(RemotePeerInfo remotePeerDetails) {
-        return remotePeerDetails.getIsComplete() == 0 &&
-                remotePeerDetails.getIsChoked() == 0 && remotePeerDetails.getIsInterested() == 1;
+        return remotePeerDetails.isUnchokedAndInterested();
     }
 
     /**
-     * This method is used to get the index of first piece different from current piece
+     * This method is used to send REQUEST message to connection
      *
-     * @param peerID - peerID of the remote host
-     * @return index of the first different piece
+     * @param connection   - connection through which the message to be sent
+     * @param pieceIndex   - index of the piece to be requested
+     * @param remotePeerID - peerID to which the message should be sent
      */
-    private int getFirstDifferentPieceIndex(String peerID) {
-        return peerProcess.bitFieldMsg.findInterestingPieceIndex(peerProcess.remotePeerInfoMap.get(peerID).getBitFieldMessage());
+    private void sendRequestMessage(PeerConnection connection, int pieceIndex, String remotePeerID) {
+        logAndShowInConsole(peerProcess.currentPeerID + " sending REQUEST message to Peer " + remotePeerID + " for piece " + pieceIndex);
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_REQUEST, PeerUtils.integerToBytes(pieceIndex));
     }
 
     /**
-     * This method is used to send REQUEST message to socket
+     * This method is used to send a block REQUEST message to connection
      *
-     * @param socket       - socket in which the message to be sent
-     * @param pieceIndex   - index of the piece to be requested
+     * @param connection   - connection through which the message to be sent
+     * @param blockId      - number of the block to be requested
      * @param remotePeerID - peerID to which the message should be sent
      */
-    private void sendRequestMessage(Socket socket, int pieceIndex, String remotePeerID) {
-        logAndShowInConsole(peerProcess.currentPeerID + " sending REQUEST message to Peer " + remotePeerID + " for piece " + pieceIndex);
-        int pieceIndexLength = MsgConstants.PIECE_INDEX_LENGTH;
-        byte[] pieceInBytes = new byte[pieceIndexLength];
-        for (int i = 0; i < pieceIndexLength; i++) {
-            pieceInBytes[i] = 0;
+    private void sendBlockRequestMessage(PeerConnection connection, int blockId, String remotePeerID) {
+        PiecePicker piecePicker = peerProcess.piecePicker;
+        int pieceIndex = piecePicker.pieceOf(blockId);
+        int offset = piecePicker.blockOffset(blockId);
+        logAndShowInConsole(peerProcess.currentPeerID + " sending REQUEST message to Peer " + remotePeerID + " for piece " + pieceIndex + " at offset " + offset);
+        byte[] payload = new byte[MsgConstants.PIECE_INDEX_LENGTH + MsgConstants.BLOCK_OFFSET_LENGTH + MsgConstants.BLOCK_LENGTH_LENGTH];
+        MsgCodec.putInt(payload, 0, pieceIndex);
+        MsgCodec.putInt(payload, MsgConstants.PIECE_INDEX_LENGTH, offset);
+        MsgCodec.putInt(payload, MsgConstants.PIECE_INDEX_LENGTH + MsgConstants.BLOCK_OFFSET_LENGTH, piecePicker.blockLength(blockId));
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_REQUEST_BLOCK, payload);
+    }
+
+    /**
+     * This method is used to send a block of a piece to connection, reading only the requested bytes
+     *
+     * @param connection   - connection through which the message to be sent
+     * @param message      - block REQUEST message received
+     * @param remotePeerID - peerID to which the message should be sent
+     */
+    private void sendBlock(PeerConnection connection, BaseMsg message, String remotePeerID) {
+        byte[] request = message.getPayload();
+        if (request.length < MsgConstants.PIECE_INDEX_LENGTH + MsgConstants.BLOCK_OFFSET_LENGTH + MsgConstants.BLOCK_LENGTH_LENGTH)
+            return;
+        int pieceIndex = MsgCodec.getInt(request, 0);
+        int offset = MsgCodec.getInt(request, MsgConstants.PIECE_INDEX_LENGTH);
+        int length = MsgCodec.getInt(request, MsgConstants.PIECE_INDEX_LENGTH + MsgConstants.BLOCK_OFFSET_LENGTH);
+        if (pieceIndex < 0 || pieceIndex >= peerProcess.bitFieldMsg.getNumPieces() || !peerProcess.bitFieldMsg.hasPiece(pieceIndex)
+                || offset < 0 || length <= 0 || offset + length > PieceStore.pieceLength(pieceIndex)) {
+            logAndShowInConsole(currentPeerID + " received an invalid REQUEST for piece " + pieceIndex + " from Peer " + remotePeerID);
+            return;
         }
+        logAndShowInConsole(currentPeerID + " sending a PIECE message for piece " + pieceIndex + " at offset " + offset + " to peer " + remotePeerID);
 
-        byte[] pieceIndexInBytes = PeerUtils.integerToBytes(pieceIndex);
-        System.arraycopy(pieceIndexInBytes, 0, pieceInBytes, 0, pieceIndexInBytes.length);
-        BaseMsg message = new BaseMsg(MsgConstants.MESSAGE_REQUEST, pieceIndexInBytes);
-        SendMessageToSocket(socket, BaseMsg.convertMessageToByteArray(message));
+        byte[] prefix = Arrays.copyOf(request, MsgConstants.PIECE_INDEX_LENGTH + MsgConstants.BLOCK_OFFSET_LENGTH);
+        sendFileMessageToConnection(connection, MsgConstants.MESSAGE_BLOCK, prefix, pieceIndex, offset, length);
+    }
 
-        pieceInBytes = null;
-        pieceIndexInBytes = null;
-        message = null;
+    /**
+     * This method is used to check if a message requests a piece or a block of a piece
+     *
+     * @param messageType - type of the message
+     * @return true - REQUEST or block REQUEST message; false - any other message
+     */
+    private static boolean isRequest(byte messageType) {
+        return messageType == MsgConstants.MESSAGE_REQUEST || messageType == MsgConstants.MESSAGE_REQUEST_BLOCK;
     }
 
     /**
-     * This method is used to send File piece to socket
+     * This method is used to send File piece to connection
      *
-     * @param socket       - socket in which the message to be sent
+     * @param connection   - connection through which the message to be sent
      * @param message      - message to be sent
      * @param remotePeerID - peerID to which the message should be sent
      */
-    private void sendFilePiece(Socket socket, BaseMsg message, String remotePeerID) {
+    private void sendFilePiece(PeerConnection connection, BaseMsg message, String remotePeerID) {
         byte[] pieceIndexInBytes = message.getPayload();
         int pieceIndex = PeerUtils.bytesToInteger(pieceIndexInBytes);
-        int pieceSize = ConfigSettings.pieceSize;
+        if (pieceIndex < 0 || pieceIndex >= peerProcess.bitFieldMsg.getNumPieces() || !peerProcess.bitFieldMsg.hasPiece(pieceIndex)) {
+            logAndShowInConsole(currentPeerID + " received an invalid REQUEST for piece " + pieceIndex + " from Peer " + remotePeerID);
+            return;
+        }
         logAndShowInConsole(currentPeerID + " sending a PIECE message for piece " + pieceIndex + " to peer " + remotePeerID);
 
-        byte[] bytesRead = new byte[pieceSize];
-        int numberOfBytesRead = 0;
-        File file = new File(currentPeerID, ConfigSettings.fileName);
-        try {
-            randomAccessFile = new RandomAccessFile(file, "r");
-            randomAccessFile.seek(pieceIndex * pieceSize);
-            numberOfBytesRead = randomAccessFile.read(bytesRead, 0, pieceSize);
-
-            byte[] buffer = new byte[numberOfBytesRead + MsgConstants.PIECE_INDEX_LENGTH];
-            System.arraycopy(pieceIndexInBytes, 0, buffer, 0, MsgConstants.PIECE_INDEX_LENGTH);
-            System.arraycopy(bytesRead, 0, buffer, MsgConstants.PIECE_INDEX_LENGTH, numberOfBytesRead);
-
-            BaseMsg messageToBeSent = new BaseMsg(MsgConstants.MESSAGE_PIECE, buffer);
-            SendMessageToSocket(socket, BaseMsg.convertMessageToByteArray(messageToBeSent));
-            randomAccessFile.close();
-
-            buffer = null;
-            bytesRead = null;
-            pieceIndexInBytes = null;
-            messageToBeSent = null;
-        } catch (IOException e) {
-
-        }
+        //only the index is built here, the data of the piece goes from the piece store to the connection
+        sendFileMessageToConnection(connection, MsgConstants.MESSAGE_PIECE, pieceIndexInBytes, pieceIndex, 0, PieceStore.pieceLength(pieceIndex));
     }
 
     /**
      * This method is used if remote peer is not a preferred neighbor or optimistically unchoked neighbor.
      *
-     * @param remotePeerId - peerID to be checked
+     * @param remotePeerInfo - peer to be checked
      * @return true - remote peer is not preferred neighbor or optimistically unchoked neighbor;
      * false - remote peer is preferred neighbor or optimistically unchoked neighbor
      */
-    private boolean isNotPreferredAndUnchokedNeighbour(String remotePeerId) {
-        return !peerProcess.preferredNeighboursMap.containsKey(remotePeerId) && !peerProcess.optimisticUnchokedNeighbors.containsKey(remotePeerId);
+    private boolean isNotPreferredAndUnchokedNeighbour(RemotePeerInfo remotePeerInfo) {
+        int slot = remotePeerInfo.getIndex();
+        return !peerProcess.peerTable.getPreferredNeighbors().contains(slot) && !peerProcess.peerTable.getOptimisticNeighbors().contains(slot);
     }
 
     /**
-     * This method is used to send CHOKE message to socket
+     * This method is used to send CHOKE message to connection
      *
-     * @param socket       - socket in which the message to be sent
+     * @param connection   - connection through which the message to be sent
      * @param remotePeerID - peerID to which the message should be sent
      */
-    private void sendChokedMessage(Socket socket, String remotePeerID) {
+    private void sendChokedMessage(PeerConnection connection, String remotePeerID) {
         logAndShowInConsole(currentPeerID + " sending a CHOKE message to Peer " + remotePeerID);
-        BaseMsg message = new BaseMsg(MsgConstants.MESSAGE_CHOKE);
-        byte[] messageInBytes = BaseMsg.convertMessageToByteArray(message);
-        SendMessageToSocket(socket, messageInBytes);
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_CHOKE, null);
     }
 
     /**
-     * This method is used to send UNCHOKE message to socket
+     * This method is used to send UNCHOKE message to connection
      *
-     * @param socket       - socket in which the message to be sent
+     * @param connection   - connection through which the message to be sent
      * @param remotePeerID - peerID to which the message should be sent
      */
-    private void sendUnChokedMessage(Socket socket, String remotePeerID) {
+    private void sendUnChokedMessage(PeerConnection connection, String remotePeerID) {
         logAndShowInConsole(currentPeerID + " sending a UNCHOKE message to Peer " + remotePeerID);
-        BaseMsg message = new BaseMsg(MsgConstants.MESSAGE_UNCHOKE);
-        byte[] messageInBytes = BaseMsg.convertMessageToByteArray(message);
-        SendMessageToSocket(socket, messageInBytes);
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_UNCHOKE, null);
     }
 
     /**
-     * This method is used to send NOT INTERESTED message to socket
+     * This method is used to send NOT INTERESTED message to connection
      *
-     * @param socket       - socket in which the message to be sent
+     * @param connection   - connection through which the message to be sent
      * @param remotePeerID - peerID to which the message should be sent
      */
-    private void sendNotInterestedMessage(Socket socket, String remotePeerID) {
+    private void sendNotInterestedMessage(PeerConnection connection, String remotePeerID) {
         logAndShowInConsole(currentPeerID + " sending a NOT INTERESTED message to Peer " + remotePeerID);
-        BaseMsg message = new BaseMsg(MsgConstants.MESSAGE_NOT_INTERESTED);
-        byte[] messageInBytes = BaseMsg.convertMessageToByteArray(message);
-        SendMessageToSocket(socket, messageInBytes);
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_NOT_INTERESTED, null);
     }
 
     /**
-     * This method is used to send INTERESTED message to socket
+     * This method is used to send INTERESTED message to connection
      *
-     * @param socket       - socket in which the message to be sent
+     * @param connection   - connection through which the message to be sent
      * @param remotePeerID - peerID to which the message should be sent
      */
-    private void sendInterestedMessage(Socket socket, String remotePeerID) {
+    private void sendInterestedMessage(PeerConnection connection, String remotePeerID) {
         logAndShowInConsole(currentPeerID + " sending an INTERESTED message to Peer " + remotePeerID);
-        BaseMsg message = new BaseMsg(MsgConstants.MESSAGE_INTERESTED);
-        byte[] messageInBytes = BaseMsg.convertMessageToByteArray(message);
-        SendMessageToSocket(socket, messageInBytes);
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_INTERESTED, null);
     }
 
     /**
-     * This method is used to send BITFIELD message to socket
+     * This method is used to send BITFIELD message to connection
      *
-     * @param socket       - socket in which the message to be sent
+     * @param connection   - connection through which the message to be sent
      * @param remotePeerID - peerID to which the message should be sent
      */
-    private void sendBitFieldMessage(Socket socket, String remotePeerID) {
+    private void sendBitFieldMessage(PeerConnection connection, String remotePeerID) {
         logAndShowInConsole(currentPeerID + " sending a BITFIELD message to Peer " + remotePeerID);
-        byte[] bitFieldMessageInByteArray = peerProcess.bitFieldMsg.getBytes();
-        BaseMsg message = new BaseMsg(MsgConstants.MESSAGE_BITFIELD, bitFieldMessageInByteArray);
-        byte[] messageInBytes = BaseMsg.convertMessageToByteArray(message);
-        SendMessageToSocket(socket, messageInBytes);
-
-        bitFieldMessageInByteArray = null;
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_BITFIELD, peerProcess.bitFieldMsg.getBytes());
     }
 
     /**
      * This method is used to check if a peer is interested to receive messages.
+     * A HAVE message updates the stored bitfield of the remote peer by a single piece, a BITFIELD message replaces it.
      *
-     * @param message      - message to be checked
-     * @param remotePeerID - peerID to which the message should be sent
+     * @param message        - message to be checked
+     * @param remotePeerInfo - peer which sent the message
      * @return true - peer interested; false - peer not interested
      */
-    private boolean isPeerInterested(BaseMsg message, String remotePeerID) {
-        boolean peerInterested = false;
+    private boolean isPeerInterested(BaseMsg message, RemotePeerInfo remotePeerInfo) {
+        String remotePeerID = remotePeerInfo.getPeerId();
+        if (message.getType() == MsgConstants.MESSAGE_HAVE) {
+            int havePieceIndex = PeerUtils.bytesToInteger(message.getPayload());
+            peerProcess.piecePicker.peerHasPiece(remotePeerInfo, havePieceIndex);
+            BitFieldMessage bitField = remotePeerInfo.getBitFieldMessage();
+            logAndShowInConsole(currentPeerID + " received HAVE message from Peer " + remotePeerID + " for piece " + havePieceIndex);
+            if (bitField.isFileDownloadComplete()) {
+                markPeerComplete(remotePeerInfo);
+            }
+            //a piece which is missing locally is interesting without looking at the rest of the bitfield
+            if (havePieceIndex >= 0 && havePieceIndex < bitField.getNumPieces() && !peerProcess.bitFieldMsg.hasPiece(havePieceIndex))
+                return true;
+            return peerProcess.bitFieldMsg.findInterestingPieceIndex(bitField) != -1;
+        }
+
+        BitFieldMessage bitField = updatePeerBitField(message, remotePeerInfo);
+        return peerProcess.bitFieldMsg.findInterestingPieceIndex(bitField) != -1;
+    }
+
+    /**
+     * This method is used to replace the stored bitfield of a remote peer by a BITFIELD message. A peer whose
+     * bitfield is full is recorded as complete.
+     *
+     * @param message        - BITFIELD message received
+     * @param remotePeerInfo - peer which sent the message
+     * @return the bitfield of the remote peer
+     */
+    private BitFieldMessage updatePeerBitField(BaseMsg message, RemotePeerInfo remotePeerInfo) {
         BitFieldMessage bitField = BitFieldMessage.decodeMessage(message.getPayload());
-        peerProcess.remotePeerInfoMap.get(remotePeerID).setBitFieldMessage(bitField);
-        int pieceIndex = peerProcess.bitFieldMsg.findInterestingPieceIndex(bitField);
-        if (pieceIndex != -1) {
-            if (message.getType().equals(MsgConstants.MESSAGE_HAVE))
-                logAndShowInConsole(currentPeerID + " received HAVE message from Peer " + remotePeerID + " for piece " + pieceIndex);
-            peerInterested = true;
+        peerProcess.piecePicker.setPeerBitField(remotePeerInfo, bitField);
+        if (bitField.isFileDownloadComplete()) {
+            markPeerComplete(remotePeerInfo);
         }
+        return bitField;
+    }
+
+    /**
+     * This method is used to record that a remote peer has the complete file, which may complete the swarm.
+     *
+     * @param remotePeerInfo - the remote peer
+     */
+    private void markPeerComplete(RemotePeerInfo remotePeerInfo) {
+        remotePeerInfo.markComplete();
+        peerProcess.checkSwarmCompletion();
+    }
+
+    /**
+     * This method is used to find the connection to a remote peer by its slot
+     *
+     * @param remotePeerInfo - the remote peer
+     * @return the connection, or null if the peer is not connected
+     */
+    private static PeerConnection connectionOf(RemotePeerInfo remotePeerInfo) {
+        return peerProcess.peerTable.getConnection(remotePeerInfo.getIndex());
+    }
 
-        return peerInterested;
+    /**
+     * This method is used to write a message to connection
+     *
+     * @param connection  - connection through which the message to be sent
+     * @param messageType - type of the message to be sent
+     * @param payload     - content of the message, null for messages without payload
+     */
+    private void SendMessageToConnection(PeerConnection connection, byte messageType, byte[] payload) {
+        if (connection == null)
+            return;
+        try {
+            connection.sendMessage(messageType, payload);
+        } catch (IOException e) {
+        }
     }
 
     /**
-     * This method is used to write a message to socket
+     * This method is used to send a message carrying a range of a piece to a connection
      *
-     * @param socket         - socket in which the message to be sent
-     * @param messageInBytes - message to be sent
+     * @param connection  - connection through which the message to be sent
+     * @param messageType - type of the message
+     * @param prefix      - beginning of the payload, written before the data of the piece
+     * @param pieceIndex  - index of the piece
+     * @param offset      - position of the data within the piece
+     * @param length      - number of bytes of the piece to send
      */
-    private void SendMessageToSocket(Socket socket, byte[] messageInBytes) {
+    private void sendFileMessageToConnection(PeerConnection connection, byte messageType, byte[] prefix, int pieceIndex, int offset, int length) {
+        if (connection == null)
+            return;
         try {
-            OutputStream out = socket.getOutputStream();
-            out.write(messageInBytes);
+            connection.sendFileMessage(messageType, prefix, peerProcess.pieceStore, pieceIndex, offset, length);
         } catch (IOException e) {
         }
     }
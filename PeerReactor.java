@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport serving all peer connections from a small fixed set of selector threads.
+ * It replaces the thread per connection model of PeerServerHandler and PeerMessageHandler
+ * while keeping the same handshake and message format on the wire.
+ */
+public class PeerReactor {
+
+    // Time a selector waits before retrying connections whose inbound queue was full
+    private static final long PAUSED_RETRY_MILLIS = 10;
+
+    // Selector loops serving the connections
+    private final SelectorLoop[] selectorLoops;
+    // The peerID of the current host
+    private final String ownPeerId;
+    // Used to spread the connections over the selector loops
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    // Channel accepting incoming connections
+    private ServerSocketChannel serverChannel;
+
+    /**
+     * Initializes the reactor with the given number of selector threads.
+     *
+     * @param selectorThreads - number of selector threads
+     * @param ownPeerId       - peerID of the current host
+     * @throws IOException if a selector cannot be opened
+     */
+    public PeerReactor(int selectorThreads, String ownPeerId) throws IOException {
+        this.ownPeerId = ownPeerId;
+        selectorLoops = new SelectorLoop[Math.max(1, selectorThreads)];
+        for (int i = 0; i < selectorLoops.length; i++) {
+            selectorLoops[i] = new SelectorLoop("peer-selector-" + (i + 1));
+        }
+    }
+
+    /**
+     * Starts the selector threads.
+     */
+    public void start() {
+        for (SelectorLoop selectorLoop : selectorLoops) {
+            selectorLoop.thread.start();
+        }
+    }
+
+    /**
+     * Starts accepting connections from other peers on the given port.
+     *
+     * @param port - port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public void listen(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        SelectorLoop acceptLoop = selectorLoops[0];
+        acceptLoop.execute(() -> acceptLoop.register(serverChannel, SelectionKey.OP_ACCEPT, null));
+    }
+
+    /**
+     * Opens a connection to a remote peer. The handshake is sent once the connection is established.
+     *
+     * @param address - address of the remote host
+     * @param port    - port of the remote host
+     * @throws IOException if the connection cannot be opened
+     */
+    public void connect(String address, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.connect(new InetSocketAddress(address, port));
+        SelectorLoop selectorLoop = nextSelectorLoop();
+        ChannelPeerConnection connection = new ChannelPeerConnection(channel, MsgConstants.ACTIVE_CONNECTION, ownPeerId, selectorLoop);
+        selectorLoop.execute(() -> selectorLoop.register(channel, SelectionKey.OP_CONNECT, connection));
+    }
+
+    /**
+     * Stops the selector threads and closes the listening channel and all connections.
+     */
+    public void close() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+        }
+        for (SelectorLoop selectorLoop : selectorLoops) {
+            selectorLoop.close();
+        }
+    }
+
+    /**
+     * @return the selector loop which serves the next connection
+     */
+    private SelectorLoop nextSelectorLoop() {
+        return selectorLoops[Math.floorMod(nextLoop.getAndIncrement(), selectorLoops.length)];
+    }
+
+    /**
+     * Accepts the pending incoming connections and hands them to the selector loops.
+     */
+    private void acceptConnections() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectorLoop selectorLoop = nextSelectorLoop();
+                SocketChannel acceptedChannel = channel;
+                ChannelPeerConnection connection = new ChannelPeerConnection(acceptedChannel, MsgConstants.PASSIVE_CONNECTION, ownPeerId, selectorLoop);
+                selectorLoop.execute(() -> selectorLoop.register(acceptedChannel, SelectionKey.OP_READ, connection));
+            }
+        } catch (IOException e) {
+            logAndShowInConsole(ownPeerId + " ERROR accepting connection - " + e.getMessage());
+        }
+    }
+
+    /**
+     * This method is used to log a message in a log file and show it in console
+     *
+     * @param message - message to be logged and showed in console
+     */
+    private static void logAndShowInConsole(String message) {
+        LoggingHelper.logAndDisplay(message);
+    }
+
+    /**
+     * A selector and the thread serving the channels registered with it.
+     */
+    public class SelectorLoop implements Runnable {
+        // Selector of the loop
+        private final Selector selector;
+        // Thread running the loop
+        private final Thread thread;
+        // Tasks to be run by the selector thread
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        // Connections whose reading is paused because their inbound queue was full
+        private final ArrayDeque<ChannelPeerConnection> pausedConnections = new ArrayDeque<>();
+        // Indicates whether the loop has been stopped
+        private volatile boolean closed;
+
+        SelectorLoop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Runs a task on the selector thread.
+         *
+         * @param task - task to be run
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Registers a channel with the selector. Must be called on the selector thread.
+         *
+         * @param channel    - channel to be registered
+         * @param ops        - operations of interest
+         * @param connection - connection of the channel, null for the listening channel
+         */
+        void register(SelectableChannel channel, int ops, ChannelPeerConnection connection) {
+            try {
+                SelectionKey key = channel.register(selector, ops, connection);
+                if (connection != null) {
+                    connection.setSelectionKey(key);
+                    if (ops == SelectionKey.OP_CONNECT && ((SocketChannel) channel).isConnected()) {
+                        finishConnect(key, connection);
+                    }
+                }
+            } catch (IOException e) {
+                logAndShowInConsole(ownPeerId + " ERROR registering connection - " + e.getMessage());
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * Adds or removes an operation of interest for a channel. May be called from any thread.
+         *
+         * @param key     - registration of the channel
+         * @param op      - operation to be changed
+         * @param enabled - true to add the operation; false to remove it
+         */
+        void setInterest(SelectionKey key, int op, boolean enabled) {
+            if (key == null) {
+                return;
+            }
+            try {
+                if (enabled) {
+                    key.interestOpsOr(op);
+                } else {
+                    key.interestOpsAnd(~op);
+                }
+                if (Thread.currentThread() != thread) {
+                    selector.wakeup();
+                }
+            } catch (CancelledKeyException e) {
+            }
+        }
+
+        /**
+         * Remembers a connection whose reading is paused so that it is retried on every loop.
+         *
+         * @param connection - connection which could not queue a message
+         */
+        void pauseReading(ChannelPeerConnection connection) {
+            pausedConnections.add(connection);
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    selector.select(pausedConnections.isEmpty() ? 0 : PAUSED_RETRY_MILLIS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    retryPausedConnections();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    if (!closed) {
+                        logAndShowInConsole(ownPeerId + " ERROR in selector loop - " + e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Handles the ready operations of a channel.
+         *
+         * @param key - registration of the ready channel
+         */
+        private void handleKey(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                acceptConnections();
+                return;
+            }
+            ChannelPeerConnection connection = (ChannelPeerConnection) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    finishConnect(key, connection);
+                    return;
+                }
+                if (key.isWritable()) {
+                    connection.onWritable();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                closeConnection(connection, e);
+            }
+        }
+
+        /**
+         * Completes an outbound connection and starts reading from it.
+         *
+         * @param key        - registration of the channel
+         * @param connection - the connection established
+         */
+        private void finishConnect(SelectionKey key, ChannelPeerConnection connection) {
+            try {
+                key.interestOps(SelectionKey.OP_READ);
+                connection.onConnected();
+            } catch (IOException e) {
+                closeConnection(connection, e);
+            }
+        }
+
+        /**
+         * Retries the connections whose inbound queue was full.
+         */
+        private void retryPausedConnections() {
+            //a retried connection may pause again and be queued behind the others, it is retried on the next loop
+            for (int i = pausedConnections.size(); i > 0; i--) {
+                ChannelPeerConnection connection = pausedConnections.poll();
+                if (connection.isClosed()) {
+                    continue;
+                }
+                try {
+                    if (!connection.retryPendingMessage()) {
+                        pausedConnections.add(connection);
+                    }
+                } catch (IOException e) {
+                    closeConnection(connection, e);
+                }
+            }
+        }
+
+        /**
+         * Closes a broken connection and removes it from the peer connections.
+         *
+         * @param connection - the broken connection
+         * @param cause      - reason the connection is closed
+         */
+        private void closeConnection(ChannelPeerConnection connection, Exception cause) {
+            if (!closed && connection.getRemotePeerId() == null) {
+                logAndShowInConsole(ownPeerId + " ERROR in connection - " + cause.getMessage());
+            }
+            connection.close();
+            if (connection.getRemotePeerInfo() != null) {
+                peerProcess.removePeerConnection(connection.getRemotePeerInfo(), connection);
+            }
+        }
+
+        /**
+         * Stops the loop and closes every channel registered with it.
+         */
+        void close() {
+            closed = true;
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException | RuntimeException e) {
+            }
+        }
+    }
+}
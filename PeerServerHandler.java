@@ -31,12 +31,12 @@ public class PeerServerHandler implements Runnable {
      */
     @Override
     public void run() {
-        while(true) {
+        while(!serverSocket.isClosed()) {
             try{
                 //accept incoming socket connections
                 otherPeerSocket = serverSocket.accept();
                 //start a thread to handle incoming messages
-                otherPeerThread = new Thread(new PeerMessageHandler(otherPeerSocket, 0, peerID));
+                otherPeerThread = PeerUtils.newConnectionThread(new PeerMessageHandler(otherPeerSocket, 0, peerID));
                 peerProcess.fileServerThreads.add(otherPeerThread);
                 otherPeerThread.start();
             }catch (IOException e) {
@@ -0,0 +1,165 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of the peers of the swarm, indexed by the slot of a peer: its line in PeerInfo.cfg.
+ * The slot of a remote peer is looked up by its peerID once, when its handshake arrives, and carried with every
+ * message it sends afterwards, so the state and the connection of a peer are reached by array indexing instead of
+ * hashing its peerID for every message. The preferred and optimistically unchoked neighbors are bitsets over the slots.
+ */
+public class PeerTable {
+
+    // Peer of every slot, fixed once PeerInfo.cfg has been read
+    private final RemotePeerInfo[] peers;
+    // Unmodifiable view of the peers, in slot order
+    private final List<RemotePeerInfo> peerList;
+    // Slot of every peerID, only used when a handshake arrives
+    private final Map<String, Integer> slots = new HashMap<>();
+    // Connection of every slot, null while the peer is not connected
+    private final AtomicReferenceArray<PeerConnection> connections;
+    // Neighbors selected by the download rate, or at random by a peer with the complete file
+    private final PeerSet preferredNeighbors;
+    // Neighbor unchoked at random every optimistic unchoking interval
+    private final PeerSet optimisticNeighbors;
+
+    /**
+     * Initializes the table of the peers read from PeerInfo.cfg.
+     *
+     * @param peers - peers in slot order, the index of every peer is its position in the list
+     */
+    public PeerTable(List<RemotePeerInfo> peers) {
+        this.peers = peers.toArray(new RemotePeerInfo[0]);
+        this.peerList = Collections.unmodifiableList(Arrays.asList(this.peers));
+        for (RemotePeerInfo peer : this.peers) {
+            slots.put(peer.getPeerId(), peer.getIndex());
+        }
+        this.connections = new AtomicReferenceArray<>(this.peers.length);
+        this.preferredNeighbors = new PeerSet(this.peers.length);
+        this.optimisticNeighbors = new PeerSet(this.peers.length);
+    }
+
+    /**
+     * @return number of peers of the swarm, the current peer included
+     */
+    public int size() {
+        return peers.length;
+    }
+
+    /**
+     * @param slot - slot of the peer
+     * @return the peer of the slot
+     */
+    public RemotePeerInfo getPeer(int slot) {
+        return peers[slot];
+    }
+
+    /**
+     * Looks a peer up by its peerID. Used when a handshake arrives, every later access goes by slot.
+     *
+     * @param peerID - peerID of the peer
+     * @return the peer, or null if it is not listed in PeerInfo.cfg
+     */
+    public RemotePeerInfo findPeer(String peerID) {
+        Integer slot = slots.get(peerID);
+        return slot == null ? null : peers[slot];
+    }
+
+    /**
+     * @return every peer in slot order, the current peer included
+     */
+    public List<RemotePeerInfo> getPeers() {
+        return peerList;
+    }
+
+    /**
+     * @param slot - slot of the peer
+     * @return the connection to the peer, or null if it is not connected
+     */
+    public PeerConnection getConnection(int slot) {
+        return connections.get(slot);
+    }
+
+    /**
+     * Registers the connection to a peer whose handshake has arrived.
+     *
+     * @param slot       - slot of the peer
+     * @param connection - the connection
+     */
+    public void setConnection(int slot, PeerConnection connection) {
+        connections.set(slot, connection);
+    }
+
+    /**
+     * Removes the connection to a peer unless it has been replaced by a newer one.
+     *
+     * @param slot       - slot of the peer
+     * @param connection - the closed connection
+     * @return true if the connection was registered and has been removed
+     */
+    public boolean removeConnection(int slot, PeerConnection connection) {
+        return connections.compareAndSet(slot, connection, null);
+    }
+
+    /**
+     * @return the preferred neighbors
+     */
+    public PeerSet getPreferredNeighbors() {
+        return preferredNeighbors;
+    }
+
+    /**
+     * @return the optimistically unchoked neighbors
+     */
+    public PeerSet getOptimisticNeighbors() {
+        return optimisticNeighbors;
+    }
+
+    /**
+     * Set of peers, one bit per slot. Bits are set and cleared atomically, so the neighbor selection timers and the
+     * threads processing messages share a set without locking.
+     */
+    public static class PeerSet {
+        // Bit i of word i / 64 is set if the peer of slot i is in the set
+        private final AtomicLongArray words;
+
+        PeerSet(int size) {
+            words = new AtomicLongArray((size + 63) >>> 6);
+        }
+
+        /**
+         * @param slot - slot of the peer
+         * @return true if the peer is in the set
+         */
+        public boolean contains(int slot) {
+            return (words.get(slot >>> 6) & (1L << slot)) != 0;
+        }
+
+        /**
+         * @param slot - slot of the peer to add
+         */
+        public void add(int slot) {
+            words.getAndAccumulate(slot >>> 6, 1L << slot, (word, bit) -> word | bit);
+        }
+
+        /**
+         * @param slot - slot of the peer to remove
+         */
+        public void remove(int slot) {
+            words.getAndAccumulate(slot >>> 6, ~(1L << slot), (word, mask) -> word & mask);
+        }
+
+        /**
+         * Removes every peer.
+         */
+        public void clear() {
+            for (int i = 0; i < words.length(); i++) {
+                words.set(i, 0);
+            }
+        }
+    }
+}
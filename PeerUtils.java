@@ -1,10 +1,14 @@
 import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A utility class that provides common functionalities.
  */
 public class PeerUtils {
 
+    // Creates the virtual threads serving connections, null when the JDK has no virtual threads
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = newVirtualThreadFactory();
+
     /**
      * Converts an integer value to a byte array.
      *
@@ -26,5 +30,53 @@ public class PeerUtils {
         // Wraps the byte array into a ByteBuffer and gets the integer.
         return ByteBuffer.wrap(byteArray).getInt();
     }
-}
 
+    /**
+     * Creates an unstarted thread to serve a peer connection or the accept loop.
+     * Virtual threads are used when the connection thread mode is "virtual", so that thousands of connections
+     * do not each reserve a platform thread stack. A platform thread is used if the JDK has no virtual threads.
+     *
+     * @param task the task run by the thread.
+     * @return the thread created.
+     */
+    public static Thread newConnectionThread(Runnable task) {
+        if (ConfigSettings.connectionThreadMode.equalsIgnoreCase("virtual")) {
+            return newVirtualThread(task);
+        }
+        return new Thread(task);
+    }
+
+    /**
+     * Creates an unstarted virtual thread, or a platform thread if the JDK has no virtual threads.
+     *
+     * @param task the task run by the thread.
+     * @return the thread created.
+     */
+    public static Thread newVirtualThread(Runnable task) {
+        return VIRTUAL_THREAD_FACTORY != null ? VIRTUAL_THREAD_FACTORY.newThread(task) : new Thread(task);
+    }
+
+    /**
+     * @return true if the JDK running the peer has virtual threads
+     */
+    public static boolean hasVirtualThreads() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Looks up the virtual thread builder of JDK 21 and later by reflection, so that the peer still compiles and
+     * runs on older JDKs with platform threads.
+     *
+     * @return factory of unstarted virtual threads, or null if the JDK has no virtual threads.
+     */
+    private static ThreadFactory newVirtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class).invoke(builder, "peer-connection");
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the pieces stored in the download file, kept next to it so that a restarted peer only downloads the
+ * pieces it lacks.
+ * The journal starts with a header naming the file and piece size it belongs to, followed by one record per stored
+ * piece appended as the piece is marked present. The header and every record carry a CRC32 checksum, so a record
+ * torn by a crash while it was written ends the journal instead of restoring a wrong piece.
+ * A record is only written after the disk writer has handed the piece to the store and the piece has matched its
+ * digest, and forced to the disk after the pieces if FsyncPolicy is batch.
+ */
+public class PieceJournal {
+
+    // Marks the beginning of a journal
+    private static final int MAGIC = 0x504A524E;
+    // Length of the header: magic, file size, piece size and checksum
+    private static final int HEADER_LENGTH = 16;
+    // Length of a record: piece index and checksum
+    private static final int RECORD_LENGTH = 8;
+
+    // Channel of the journal file
+    private final FileChannel channel;
+    // Reused to encode records, guarded by this
+    private final ByteBuffer recordBuffer = ByteBuffer.allocate(RECORD_LENGTH);
+    // Position at which the next record is appended, guarded by this
+    private long appendPosition;
+
+    /**
+     * Opens the journal file, creating it if it does not exist.
+     *
+     * @param file - the journal file
+     * @throws IOException if the journal cannot be opened
+     */
+    public PieceJournal(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Marks the pieces recorded in the journal as present in a bitfield. A journal written for another file or piece
+     * size, or for a download file which did not survive, is started afresh.
+     *
+     * @param bitField   - bitfield of the current peer
+     * @param fileReused - true if the download file of an earlier run has been kept
+     * @return number of pieces restored
+     * @throws IOException if the journal cannot be read or written
+     */
+    public synchronized int restore(BitFieldMessage bitField, boolean fileReused) throws IOException {
+        long journalLength = channel.size();
+        ByteBuffer journal = ByteBuffer.allocate((int) Math.min(journalLength, Integer.MAX_VALUE));
+        while (journal.hasRemaining()) {
+            if (channel.read(journal, journal.position()) <= 0)
+                break;
+        }
+        journal.flip();
+
+        if (!fileReused || journal.remaining() < HEADER_LENGTH || journal.getInt(0) != MAGIC
+                || journal.getInt(4) != ConfigSettings.fileSize || journal.getInt(8) != ConfigSettings.pieceSize
+                || journal.getInt(12) != checksum(journal, 0, 12)) {
+            reset();
+            return 0;
+        }
+
+        int restoredPieces = 0;
+        int position = HEADER_LENGTH;
+        //records follow each other until the end of the journal or the first record which was not written completely
+        while (position + RECORD_LENGTH <= journal.limit() && journal.getInt(position + 4) == checksum(journal, position, 4)) {
+            if (bitField.setPiecePresent(journal.getInt(position))) {
+                restoredPieces++;
+            }
+            position += RECORD_LENGTH;
+        }
+        appendPosition = position;
+        channel.truncate(appendPosition);
+        return restoredPieces;
+    }
+
+    /**
+     * Appends the record of a piece which has been stored and marked present.
+     *
+     * @param pieceIndex - index of the piece
+     */
+    public synchronized void recordPiece(int pieceIndex) {
+        recordBuffer.clear();
+        recordBuffer.putInt(pieceIndex);
+        recordBuffer.putInt(checksum(recordBuffer, 0, 4));
+        recordBuffer.flip();
+        try {
+            while (recordBuffer.hasRemaining()) {
+                appendPosition += channel.write(recordBuffer, appendPosition);
+            }
+        } catch (IOException e) {
+            logAndShowInConsole(peerProcess.currentPeerID + " ERROR in recording piece " + pieceIndex + " in the journal " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forces the records written so far to the disk.
+     */
+    public void force() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Closes the journal.
+     */
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Empties the journal and writes the header of the current file and piece size.
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    private void reset() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putInt(ConfigSettings.fileSize);
+        header.putInt(ConfigSettings.pieceSize);
+        header.putInt(checksum(header, 0, 12));
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        appendPosition = HEADER_LENGTH;
+    }
+
+    /**
+     * @return CRC32 checksum of a range of a buffer
+     */
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer range = buffer.duplicate();
+        range.limit(offset + length);
+        range.position(offset);
+        crc.update(range);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * This method is used to log a message in a log file and show it in console
+     *
+     * @param message - message to be logged and showed in console
+     */
+    private static void logAndShowInConsole(String message) {
+        LoggingHelper.logAndDisplay(message);
+    }
+}
@@ -0,0 +1,481 @@
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+/**
+ * Chooses the pieces to request from remote peers, rarest first.
+ * The availability of a piece is the number of connected peers having it. It is updated incrementally when a BITFIELD
+ * or HAVE message arrives and when a peer disconnects. The missing pieces are kept ordered by availability in buckets
+ * of equal availability, so a changed count only moves a piece across a bucket boundary and the rarest pieces are
+ * always looked at first. Pieces of equal availability are chosen at random so that peers spread their requests.
+ * A piece picked for a peer is reserved for it until the piece arrives, the peer chokes us or disconnects, or the
+ * request times out, so that the same piece is never requested from two peers at once.
+ * Peers supporting block requests are asked for blocks of BlockSize bytes instead of whole pieces. Reservations are
+ * kept per block, so the blocks of one piece are fetched from several peers in parallel. Pieces already started are
+ * finished before new ones are picked, so that few pieces are partially received at any time.
+ */
+public class PiecePicker {
+
+    // Number of connected peers having each piece
+    private final int[] availability;
+    // Missing pieces ordered by availability, followed by the pieces present locally
+    private final int[] pieceOrder;
+    // Position of each piece in pieceOrder
+    private final int[] position;
+    // Position of the first missing piece of each availability, the last entry is the end of the missing pieces
+    private int[] bucketStart;
+    // Highest availability having a bucket
+    private int maxAvailability;
+    // Length of a block in bytes
+    private final int blockSize;
+    // Number of blocks each piece is divided into, the last piece may use fewer
+    private final int blocksPerPiece;
+    // Slot of the peer each block has been requested from, NO_PEER if the block is not in flight. Blocks are numbered
+    // pieceIndex * blocksPerPiece + block number within the piece
+    private final int[] reservedBy;
+    // Time each block in flight was requested
+    private final long[] reservedAtNanos;
+    // Blocks of the missing pieces which have been received
+    private final boolean[] blockReceived;
+    // Number of blocks received of each missing piece
+    private final int[] receivedBlockCount;
+    // Missing pieces having blocks in flight or received, in the order they were started
+    private final Set<Integer> partialPieces = new LinkedHashSet<>();
+
+    // Marks a block which is not reserved by any peer
+    private static final int NO_PEER = -1;
+
+    // Results of storing a block
+    public static final int BLOCK_DUPLICATE = 0;
+    public static final int BLOCK_STORED = 1;
+    public static final int PIECE_ASSEMBLED = 2;
+
+    /**
+     * Initializes the picker with the pieces present locally and no remote peer.
+     *
+     * @param localBitField - bitfield of the current peer
+     */
+    public PiecePicker(BitFieldMessage localBitField) {
+        int numPieces = localBitField.getNumPieces();
+        availability = new int[numPieces];
+        pieceOrder = new int[numPieces];
+        position = new int[numPieces];
+        blockSize = ConfigSettings.blockSize > 0 ? Math.min(ConfigSettings.blockSize, ConfigSettings.pieceSize) : ConfigSettings.pieceSize;
+        blocksPerPiece = (ConfigSettings.pieceSize + blockSize - 1) / blockSize;
+        reservedBy = new int[numPieces * blocksPerPiece];
+        Arrays.fill(reservedBy, NO_PEER);
+        reservedAtNanos = new long[numPieces * blocksPerPiece];
+        blockReceived = new boolean[numPieces * blocksPerPiece];
+        receivedBlockCount = new int[numPieces];
+        int missingEnd = 0;
+        int presentStart = numPieces;
+        for (int pieceIndex = 0; pieceIndex < numPieces; pieceIndex++) {
+            int pos = localBitField.hasPiece(pieceIndex) ? --presentStart : missingEnd++;
+            pieceOrder[pos] = pieceIndex;
+            position[pieceIndex] = pos;
+        }
+        bucketStart = new int[]{0, missingEnd};
+    }
+
+    /**
+     * Replaces the bitfield of a remote peer and updates the availability of the pieces it has.
+     *
+     * @param remotePeerInfo - the remote peer
+     * @param bitField       - the new bitfield of the peer, null once the peer has disconnected
+     */
+    public synchronized void setPeerBitField(RemotePeerInfo remotePeerInfo, BitFieldMessage bitField) {
+        BitFieldMessage oldBitField = remotePeerInfo.getBitFieldMessage();
+        if (oldBitField != null) {
+            oldBitField.forEachPiecePresent(this::decrementAvailability);
+        }
+        remotePeerInfo.setBitFieldMessage(bitField);
+        if (bitField != null) {
+            bitField.forEachPiecePresent(this::incrementAvailability);
+        }
+    }
+
+    /**
+     * Records a piece announced by a HAVE message of a remote peer.
+     *
+     * @param remotePeerInfo - the remote peer
+     * @param pieceIndex     - index of the piece announced
+     */
+    public synchronized void peerHasPiece(RemotePeerInfo remotePeerInfo, int pieceIndex) {
+        BitFieldMessage bitField = remotePeerInfo.getBitFieldMessage();
+        if (bitField == null) {
+            bitField = new BitFieldMessage();
+            remotePeerInfo.setBitFieldMessage(bitField);
+        }
+        if (bitField.setPiecePresent(pieceIndex)) {
+            incrementAvailability(pieceIndex);
+        }
+    }
+
+    /**
+     * Forgets the pieces of a remote peer whose connection is closed.
+     *
+     * @param remotePeerInfo - the remote peer
+     */
+    public void removePeer(RemotePeerInfo remotePeerInfo) {
+        setPeerBitField(remotePeerInfo, null);
+    }
+
+    /**
+     * Removes a piece which has been received from the pieces to be picked.
+     *
+     * @param pieceIndex - index of the piece received
+     */
+    public synchronized void piecePresent(int pieceIndex) {
+        Arrays.fill(reservedBy, pieceIndex * blocksPerPiece, (pieceIndex + 1) * blocksPerPiece, NO_PEER);
+        partialPieces.remove(pieceIndex);
+        if (position[pieceIndex] >= missingEnd())
+            return;
+        //move the piece to the end of each bucket above it in turn until it leaves the missing pieces
+        for (int bucket = availability[pieceIndex]; bucket <= maxAvailability; bucket++) {
+            swap(position[pieceIndex], bucketStart[bucket + 1] - 1);
+            bucketStart[bucket + 1]--;
+        }
+    }
+
+    /**
+     * Picks the rarest missing piece which a remote peer has and of which nothing is in flight or received, choosing
+     * at random among pieces of equal availability, and reserves all its blocks for the peer. Used for peers which
+     * only request whole pieces.
+     *
+     * @param remoteBitField - bitfield of the remote peer
+     * @param remotePeerSlot - slot of the remote peer the piece will be requested from
+     * @return index of the piece, or -1 if the remote peer has no piece left to pick
+     */
+    public synchronized int reservePiece(BitFieldMessage remoteBitField, int remotePeerSlot) {
+        long now = System.nanoTime();
+        int pieceIndex = findRarestPiece(remoteBitField, candidate -> isPieceFree(candidate, now));
+        if (pieceIndex != -1) {
+            for (int blockId = pieceIndex * blocksPerPiece; blockId < (pieceIndex + 1) * blocksPerPiece; blockId++) {
+                reserve(blockId, remotePeerSlot, now);
+            }
+            partialPieces.add(pieceIndex);
+        }
+        return pieceIndex;
+    }
+
+    /**
+     * Picks a block which a remote peer has and which is neither in flight nor received, and reserves it for the peer.
+     * Blocks of the pieces already started come first, then the blocks of the rarest piece.
+     *
+     * @param remoteBitField - bitfield of the remote peer
+     * @param remotePeerSlot - slot of the remote peer the block will be requested from
+     * @return number of the block, or -1 if the remote peer has no block left to pick
+     */
+    public synchronized int reserveBlock(BitFieldMessage remoteBitField, int remotePeerSlot) {
+        long now = System.nanoTime();
+        for (int pieceIndex : partialPieces) {
+            if (remoteBitField.hasPiece(pieceIndex)) {
+                int blockId = findFreeBlock(pieceIndex, now);
+                if (blockId != -1) {
+                    reserve(blockId, remotePeerSlot, now);
+                    return blockId;
+                }
+            }
+        }
+        int pieceIndex = findRarestPiece(remoteBitField, candidate -> findFreeBlock(candidate, now) != -1);
+        if (pieceIndex == -1)
+            return -1;
+        int blockId = findFreeBlock(pieceIndex, now);
+        reserve(blockId, remotePeerSlot, now);
+        partialPieces.add(pieceIndex);
+        return blockId;
+    }
+
+    /**
+     * Picks the rarest missing piece which a remote peer has, whether it is in flight or not. Used in endgame mode,
+     * where the pieces in flight to other peers are requested again. Pieces whose data has arrived and is waiting to
+     * be stored or verified are not picked. The reservations are left unchanged.
+     *
+     * @param remoteBitField - bitfield of the remote peer
+     * @param skip           - pieces which must not be picked, such as those already requested from the peer
+     * @return index of the piece, or -1 if the remote peer has no piece left to pick
+     */
+    public synchronized int pickEndgamePiece(BitFieldMessage remoteBitField, IntPredicate skip) {
+        return findRarestPiece(remoteBitField,
+                candidate -> receivedBlockCount[candidate] != blocksInPiece(candidate) && !skip.test(candidate));
+    }
+
+    /**
+     * Picks a block which a remote peer has and which has not been received, whether it is in flight or not. Used in
+     * endgame mode, where every missing block is in flight. The reservations are left unchanged.
+     *
+     * @param remoteBitField - bitfield of the remote peer
+     * @param skip           - blocks which must not be picked, such as those already requested from the peer
+     * @return number of the block, or -1 if the remote peer has no block left to pick
+     */
+    public synchronized int pickEndgameBlock(BitFieldMessage remoteBitField, IntPredicate skip) {
+        for (int pieceIndex : partialPieces) {
+            if (!remoteBitField.hasPiece(pieceIndex))
+                continue;
+            for (int blockId = pieceIndex * blocksPerPiece; blockId < pieceIndex * blocksPerPiece + blocksInPiece(pieceIndex); blockId++) {
+                if (!blockReceived[blockId] && !skip.test(blockId))
+                    return blockId;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Releases the reservations of requests which will not be answered by a peer, so that they can be requested
+     * elsewhere. A reservation taken over by another peer after a timeout is kept.
+     *
+     * @param remotePeerInfo - the peer the requests were sent to
+     * @param requestKeys    - numbers of the blocks requested from the peer, or indices of the pieces if the peer
+     *                       is asked for whole pieces
+     */
+    public synchronized void release(RemotePeerInfo remotePeerInfo, List<Integer> requestKeys) {
+        int remotePeerSlot = remotePeerInfo.getIndex();
+        for (int requestKey : requestKeys) {
+            int pieceIndex = remotePeerInfo.supportsBlocks() ? pieceOf(requestKey) : requestKey;
+            int firstBlock = remotePeerInfo.supportsBlocks() ? requestKey : pieceIndex * blocksPerPiece;
+            int lastBlock = remotePeerInfo.supportsBlocks() ? requestKey : (pieceIndex + 1) * blocksPerPiece - 1;
+            boolean started = receivedBlockCount[pieceIndex] > 0;
+            for (int blockId = pieceIndex * blocksPerPiece; blockId < (pieceIndex + 1) * blocksPerPiece; blockId++) {
+                if (blockId >= firstBlock && blockId <= lastBlock && reservedBy[blockId] == remotePeerSlot) {
+                    reservedBy[blockId] = NO_PEER;
+                }
+                started |= reservedBy[blockId] != NO_PEER;
+            }
+            if (!started) {
+                partialPieces.remove(pieceIndex);
+            }
+        }
+    }
+
+    /**
+     * Records a received block.
+     *
+     * @param blockId - number of the block
+     * @return BLOCK_DUPLICATE if the block was received before, PIECE_ASSEMBLED if it was the last missing block of
+     * its piece, BLOCK_STORED otherwise
+     */
+    public synchronized int blockReceived(int blockId) {
+        int pieceIndex = pieceOf(blockId);
+        if (blockReceived[blockId] || position[pieceIndex] >= missingEnd())
+            return BLOCK_DUPLICATE;
+        blockReceived[blockId] = true;
+        reservedBy[blockId] = NO_PEER;
+        return ++receivedBlockCount[pieceIndex] == blocksInPiece(pieceIndex) ? PIECE_ASSEMBLED : BLOCK_STORED;
+    }
+
+    /**
+     * Records a whole piece received, taking the blocks which have not been received yet.
+     *
+     * @param pieceIndex - index of the piece
+     * @return BLOCK_DUPLICATE if the piece or all its blocks were received before, PIECE_ASSEMBLED otherwise
+     */
+    public synchronized int pieceReceived(int pieceIndex) {
+        int blockCount = blocksInPiece(pieceIndex);
+        if (position[pieceIndex] >= missingEnd() || receivedBlockCount[pieceIndex] == blockCount)
+            return BLOCK_DUPLICATE;
+        Arrays.fill(blockReceived, pieceIndex * blocksPerPiece, pieceIndex * blocksPerPiece + blockCount, true);
+        Arrays.fill(reservedBy, pieceIndex * blocksPerPiece, (pieceIndex + 1) * blocksPerPiece, NO_PEER);
+        receivedBlockCount[pieceIndex] = blockCount;
+        return PIECE_ASSEMBLED;
+    }
+
+    /**
+     * Forgets the received blocks of a piece which could not be stored, so that the piece is requested again.
+     *
+     * @param pieceIndex - index of the piece
+     */
+    public synchronized void discardPiece(int pieceIndex) {
+        Arrays.fill(blockReceived, pieceIndex * blocksPerPiece, (pieceIndex + 1) * blocksPerPiece, false);
+        receivedBlockCount[pieceIndex] = 0;
+        partialPieces.remove(pieceIndex);
+    }
+
+    /**
+     * @return number of blocks each piece is divided into
+     */
+    public int getBlocksPerPiece() {
+        return blocksPerPiece;
+    }
+
+    /**
+     * @param blockId - number of a block
+     * @return index of the piece the block belongs to
+     */
+    public int pieceOf(int blockId) {
+        return blockId / blocksPerPiece;
+    }
+
+    /**
+     * @param blockId - number of a block
+     * @return position of the block within its piece in bytes
+     */
+    public int blockOffset(int blockId) {
+        return blockId % blocksPerPiece * blockSize;
+    }
+
+    /**
+     * @param blockId - number of a block
+     * @return length of the block in bytes, the last block of the file may be shorter
+     */
+    public int blockLength(int blockId) {
+        return Math.min(blockSize, pieceLength(pieceOf(blockId)) - blockOffset(blockId));
+    }
+
+    /**
+     * @param pieceIndex - index of a piece
+     * @return number of connected peers having the piece
+     */
+    public synchronized int getAvailability(int pieceIndex) {
+        return availability[pieceIndex];
+    }
+
+    /**
+     * Counts one more peer having a piece, moving a missing piece into the next bucket.
+     *
+     * @param pieceIndex - index of the piece
+     */
+    private void incrementAvailability(int pieceIndex) {
+        int bucket = availability[pieceIndex]++;
+        if (position[pieceIndex] >= missingEnd())
+            return;
+        if (bucket == maxAvailability) {
+            bucketStart = Arrays.copyOf(bucketStart, maxAvailability + 3);
+            bucketStart[maxAvailability + 2] = bucketStart[maxAvailability + 1];
+            maxAvailability++;
+        }
+        //the last piece of a bucket becomes the first piece of the bucket above by moving the boundary
+        swap(position[pieceIndex], bucketStart[bucket + 1] - 1);
+        bucketStart[bucket + 1]--;
+    }
+
+    /**
+     * Counts one less peer having a piece, moving a missing piece into the previous bucket.
+     *
+     * @param pieceIndex - index of the piece
+     */
+    private void decrementAvailability(int pieceIndex) {
+        if (availability[pieceIndex] == 0)
+            return;
+        int bucket = availability[pieceIndex]--;
+        if (position[pieceIndex] >= missingEnd())
+            return;
+        swap(position[pieceIndex], bucketStart[bucket]);
+        bucketStart[bucket]++;
+    }
+
+    /**
+     * Finds the rarest missing piece which a remote peer has and which is accepted, choosing at random among pieces
+     * of equal availability.
+     *
+     * @param remoteBitField - bitfield of the remote peer
+     * @param accept         - pieces which may be picked
+     * @return index of the piece, or -1 if there is none
+     */
+    private int findRarestPiece(BitFieldMessage remoteBitField, IntPredicate accept) {
+        for (int bucket = 1; bucket <= maxAvailability; bucket++) {
+            int start = bucketStart[bucket];
+            int size = bucketStart[bucket + 1] - start;
+            if (size == 0)
+                continue;
+            int offset = ThreadLocalRandom.current().nextInt(size);
+            for (int i = 0; i < size; i++) {
+                int pieceIndex = pieceOrder[start + (offset + i) % size];
+                if (remoteBitField.hasPiece(pieceIndex) && accept.test(pieceIndex))
+                    return pieceIndex;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param blockId - number of a block
+     * @param now     - current time
+     * @return true if the block is in flight and its request has not timed out
+     */
+    private boolean isReserved(int blockId, long now) {
+        return reservedBy[blockId] != NO_PEER
+                && now - reservedAtNanos[blockId] < TimeUnit.MILLISECONDS.toNanos(ConfigSettings.requestTimeout);
+    }
+
+    /**
+     * Reserves a block for a peer.
+     *
+     * @param blockId      - number of the block
+     * @param remotePeerSlot - slot of the peer the block will be requested from
+     * @param now            - current time
+     */
+    private void reserve(int blockId, int remotePeerSlot, long now) {
+        reservedBy[blockId] = remotePeerSlot;
+        reservedAtNanos[blockId] = now;
+    }
+
+    /**
+     * @param pieceIndex - index of a missing piece
+     * @param now        - current time
+     * @return true if no block of the piece is in flight or received
+     */
+    private boolean isPieceFree(int pieceIndex, long now) {
+        if (receivedBlockCount[pieceIndex] > 0)
+            return false;
+        for (int blockId = pieceIndex * blocksPerPiece; blockId < (pieceIndex + 1) * blocksPerPiece; blockId++) {
+            if (isReserved(blockId, now))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param pieceIndex - index of a missing piece
+     * @param now        - current time
+     * @return number of the first block of the piece which is neither in flight nor received, or -1 if there is none
+     */
+    private int findFreeBlock(int pieceIndex, long now) {
+        for (int blockId = pieceIndex * blocksPerPiece; blockId < pieceIndex * blocksPerPiece + blocksInPiece(pieceIndex); blockId++) {
+            if (!blockReceived[blockId] && !isReserved(blockId, now))
+                return blockId;
+        }
+        return -1;
+    }
+
+    /**
+     * @param pieceIndex - index of a piece
+     * @return number of blocks of the piece
+     */
+    private int blocksInPiece(int pieceIndex) {
+        return (pieceLength(pieceIndex) + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * @param pieceIndex - index of a piece
+     * @return length of the piece in bytes, the last piece of the file may be shorter
+     */
+    private static int pieceLength(int pieceIndex) {
+        return Math.min(ConfigSettings.pieceSize, ConfigSettings.fileSize - pieceIndex * ConfigSettings.pieceSize);
+    }
+
+    /**
+     * @return position following the last missing piece
+     */
+    private int missingEnd() {
+        return bucketStart[maxAvailability + 1];
+    }
+
+    /**
+     * Exchanges the pieces at two positions.
+     *
+     * @param first  - position of a piece
+     * @param second - position of another piece
+     */
+    private void swap(int first, int second) {
+        int firstPiece = pieceOrder[first];
+        int secondPiece = pieceOrder[second];
+        pieceOrder[first] = secondPiece;
+        pieceOrder[second] = firstPiece;
+        position[secondPiece] = first;
+        position[firstPiece] = second;
+    }
+}
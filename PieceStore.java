@@ -0,0 +1,115 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Gives access to the pieces of the shared file. The file is opened once for the lifetime of the process instead
+ * of once per piece, and pieces are read and written at their position without moving a shared file pointer, so
+ * that several threads may use the store at the same time.
+ */
+public interface PieceStore {
+
+    /**
+     * Reads part of a piece.
+     *
+     * @param pieceIndex - index of the piece
+     * @param offset     - position of the data within the piece
+     * @param data       - array receiving the data
+     * @param dataOffset - position of the data in the array
+     * @param length     - number of bytes to read
+     * @throws IOException if the file cannot be read
+     */
+    void read(int pieceIndex, int offset, byte[] data, int dataOffset, int length) throws IOException;
+
+    /**
+     * Writes part of a piece at its final position in the file. The data may continue into the following pieces,
+     * so that adjacent pieces are written with one call.
+     *
+     * @param pieceIndex - index of the piece
+     * @param offset     - position of the data within the piece
+     * @param data       - array holding the data
+     * @param dataOffset - position of the data in the array
+     * @param length     - number of bytes to write
+     * @throws IOException if the file cannot be written
+     */
+    void write(int pieceIndex, int offset, byte[] data, int dataOffset, int length) throws IOException;
+
+    /**
+     * Moves part of a piece from the file to a channel without copying it into the Java heap, with the sendfile
+     * system call where the platform supports it.
+     *
+     * @param pieceIndex - index of the piece
+     * @param offset     - position of the data within the piece
+     * @param length     - largest number of bytes to transfer
+     * @param target     - channel the data is written to
+     * @return number of bytes transferred, 0 if the channel cannot take more data at the moment
+     * @throws IOException if the file cannot be read or the channel is broken
+     */
+    long transferTo(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException;
+
+    /**
+     * Forces the data written so far to the disk.
+     *
+     * @throws IOException if the data cannot be written
+     */
+    void force() throws IOException;
+
+    /**
+     * Writes the data not yet stored on disk and closes the file.
+     */
+    void close();
+
+    /**
+     * @param pieceIndex - index of a piece
+     * @return number of bytes of the piece, the last piece may be shorter than the others
+     */
+    static int pieceLength(int pieceIndex) {
+        return (int) Math.min(ConfigSettings.pieceSize, (long) ConfigSettings.fileSize - (long) pieceIndex * ConfigSettings.pieceSize);
+    }
+
+    /**
+     * @param pieceIndex - index of a piece
+     * @param offset     - position within the piece
+     * @return position in the file
+     */
+    static long filePosition(int pieceIndex, int offset) {
+        return (long) pieceIndex * ConfigSettings.pieceSize + offset;
+    }
+
+    /**
+     * Moves part of a piece from a file channel to another channel, as the stores implement transferTo.
+     *
+     * @param fileChannel - channel of the shared file
+     * @param pieceIndex  - index of the piece
+     * @param offset      - position of the data within the piece
+     * @param length      - largest number of bytes to transfer
+     * @param target      - channel the data is written to
+     * @return number of bytes transferred
+     * @throws IOException if the file cannot be read or the channel is broken
+     */
+    static long transfer(FileChannel fileChannel, int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+        long position = filePosition(pieceIndex, offset);
+        long transferred = fileChannel.transferTo(position, length, target);
+        //nothing is transferred beyond the end of the file either, which must not be taken for a full channel
+        if (transferred == 0 && position >= fileChannel.size())
+            throw new EOFException("piece " + pieceIndex + " is beyond the end of the file");
+        return transferred;
+    }
+
+    /**
+     * Opens the shared file with the store selected by the StorageMode setting.
+     *
+     * @param file     - the shared file, it must already have its final size
+     * @param writable - true if pieces are written to the file
+     * @return the store of the file
+     * @throws IOException if the file cannot be opened
+     */
+    static PieceStore open(File file, boolean writable) throws IOException {
+        if (ConfigSettings.storageMode.equalsIgnoreCase("mapped")) {
+            return new MappedPieceStore(file, writable);
+        }
+        return new ChannelPieceStore(file, writable);
+    }
+}
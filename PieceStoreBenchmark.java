@@ -0,0 +1,130 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Compares the piece stores with opening the file for every piece, as pieces were read and written before.
+ * It writes every piece of a scratch file in random order and then reads every piece in random order, the way a
+ * leecher stores pieces and a seed serves them, and reports the throughput of both. The reads are repeated and the
+ * best round is reported, so the first round warms the page cache and the JIT.
+ *
+ * Usage: java PieceStoreBenchmark [fileMegabytes] [pieceSize] [file|channel|mapped]
+ */
+public class PieceStoreBenchmark {
+
+    // Number of times every piece is read
+    private static final int READ_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int fileMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        ConfigSettings.pieceSize = args.length > 1 ? Integer.parseInt(args[1]) : 16384;
+        String[] modes = args.length > 2 ? new String[]{args[2]} : new String[]{"file", "channel", "mapped"};
+        ConfigSettings.fileSize = fileMegabytes * 1024 * 1024;
+        int numPieces = (ConfigSettings.fileSize + ConfigSettings.pieceSize - 1) / ConfigSettings.pieceSize;
+
+        System.out.println("fileSize=" + ConfigSettings.fileSize + " pieceSize=" + ConfigSettings.pieceSize + " pieces=" + numPieces);
+        System.out.printf("%-10s %14s %14s%n", "mode", "write MB/s", "read MB/s");
+        for (String mode : modes) {
+            File file = File.createTempFile("piecestore", ".bin");
+            file.deleteOnExit();
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(ConfigSettings.fileSize);
+            }
+            runBenchmark(mode, file, numPieces);
+            file.delete();
+        }
+    }
+
+    /**
+     * Runs the benchmark with the given store and prints one result line.
+     *
+     * @param mode      - "file" to open the file for every piece, otherwise the storage mode of the store
+     * @param file      - scratch file of the size of the shared file
+     * @param numPieces - number of pieces of the file
+     */
+    private static void runBenchmark(String mode, File file, int numPieces) throws IOException {
+        int[] order = shuffledPieces(numPieces);
+        byte[] piece = new byte[ConfigSettings.pieceSize];
+        new Random(1).nextBytes(piece);
+        PieceStore pieceStore = null;
+        if (!mode.equals("file")) {
+            ConfigSettings.storageMode = mode;
+            pieceStore = PieceStore.open(file, true);
+        }
+
+        long start = System.nanoTime();
+        for (int pieceIndex : order) {
+            int length = PieceStore.pieceLength(pieceIndex);
+            if (pieceStore == null) {
+                writeOpeningFile(file, pieceIndex, piece, length);
+            } else {
+                pieceStore.write(pieceIndex, 0, piece, 0, length);
+            }
+        }
+        //like the pieces written by opening the file, the written data is left to the page cache and not forced to disk
+        double writeSeconds = (System.nanoTime() - start) / 1e9;
+        if (pieceStore != null) {
+            pieceStore.close();
+            pieceStore = PieceStore.open(file, false);
+        }
+
+        double readSeconds = Double.MAX_VALUE;
+        for (int round = 0; round < READ_ROUNDS; round++) {
+            start = System.nanoTime();
+            for (int pieceIndex : order) {
+                int length = PieceStore.pieceLength(pieceIndex);
+                if (pieceStore == null) {
+                    readOpeningFile(file, pieceIndex, piece, length);
+                } else {
+                    pieceStore.read(pieceIndex, 0, piece, 0, length);
+                }
+            }
+            readSeconds = Math.min(readSeconds, (System.nanoTime() - start) / 1e9);
+        }
+        if (pieceStore != null) {
+            pieceStore.close();
+        }
+
+        double megabytes = ConfigSettings.fileSize / (1024.0 * 1024.0);
+        System.out.printf("%-10s %14.1f %14.1f%n", mode, megabytes / writeSeconds, megabytes / readSeconds);
+    }
+
+    /**
+     * Writes a piece the way it was written before the piece store: open, seek, write, close.
+     */
+    private static void writeOpeningFile(File file, int pieceIndex, byte[] piece, int length) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(PieceStore.filePosition(pieceIndex, 0));
+            randomAccessFile.write(piece, 0, length);
+        }
+    }
+
+    /**
+     * Reads a piece the way it was read before the piece store: open, seek, read, close.
+     */
+    private static void readOpeningFile(File file, int pieceIndex, byte[] piece, int length) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            randomAccessFile.seek(PieceStore.filePosition(pieceIndex, 0));
+            randomAccessFile.readFully(piece, 0, length);
+        }
+    }
+
+    /**
+     * @return indices of all pieces in random order
+     */
+    private static int[] shuffledPieces(int numPieces) {
+        int[] order = new int[numPieces];
+        for (int i = 0; i < numPieces; i++) {
+            order[i] = i;
+        }
+        Random random = new Random(42);
+        for (int i = numPieces - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes and checks the digests of pieces on a fork-join pool with a thread per core.
+ * Whole files are hashed by splitting the pieces into ranges until a range is small enough to be hashed by one
+ * thread, so every core takes a share and idle threads steal the ranges left. Received pieces are checked one by one
+ * on the same pool, off the threads processing messages and writing to disk, so verification keeps up with the rate
+ * the pieces arrive at.
+ */
+public class PieceVerifier {
+
+    // Largest number of bytes of a range of pieces hashed without splitting it further
+    private static final long MAX_RANGE_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Receives the outcome of checking a piece. It is told on a pool thread, so it only hands the outcome over and
+     * never changes the state of a peer or writes to a connection.
+     */
+    public interface VerificationListener {
+        /**
+         * @param valid - true if the piece matches its digest; false if it does not or cannot be read
+         */
+        void pieceVerified(boolean valid);
+    }
+
+    // Store the pieces are read from
+    private final PieceStore pieceStore;
+    // Threads computing the digests
+    private final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    // Digest of each thread, digests are not thread-safe
+    private final ThreadLocal<MessageDigest> threadDigest = ThreadLocal.withInitial(MetaInfo::newDigest);
+    // Piece read by each thread
+    private final ThreadLocal<byte[]> threadPieceBuffer = ThreadLocal.withInitial(() -> new byte[ConfigSettings.pieceSize]);
+    // Number of bytes of one digest
+    private final int digestLength = MetaInfo.newDigest().getDigestLength();
+
+    /**
+     * Initializes the verifier of a piece store.
+     *
+     * @param pieceStore - store the pieces are read from
+     */
+    public PieceVerifier(PieceStore pieceStore) {
+        this.pieceStore = pieceStore;
+    }
+
+    /**
+     * Hashes every piece of the shared file on all cores.
+     *
+     * @return the metainfo of the file
+     * @throws IOException if a piece cannot be read
+     */
+    public MetaInfo createMetaInfo() throws IOException {
+        byte[] digests = new byte[MetaInfo.numPieces() * digestLength];
+        try {
+            pool.invoke(new HashTask(0, MetaInfo.numPieces(), null, digests));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return new MetaInfo(ConfigSettings.fileSize, ConfigSettings.pieceSize, ConfigSettings.pieceDigest, digestLength, digests);
+    }
+
+    /**
+     * Checks every piece present in a bitfield on all cores and clears the pieces which do not match their digest.
+     *
+     * @param bitField - bitfield of the pieces to check
+     * @param metaInfo - metainfo of the shared file
+     * @return number of pieces cleared
+     */
+    public int verifyPieces(BitFieldMessage bitField, MetaInfo metaInfo) {
+        byte[] digests = new byte[bitField.getNumPieces() * digestLength];
+        pool.invoke(new HashTask(0, bitField.getNumPieces(), bitField, digests));
+        int clearedPieces = 0;
+        for (int i = 0; i < bitField.getNumPieces(); i++) {
+            if (bitField.hasPiece(i) && !metaInfo.matches(i, digests, i * digestLength) && bitField.clearPiece(i)) {
+                clearedPieces++;
+            }
+        }
+        return clearedPieces;
+    }
+
+    /**
+     * Checks a piece which has been stored against its digest. Never blocks, the listener is told on a thread of
+     * the pool.
+     *
+     * @param pieceIndex - index of the piece
+     * @param metaInfo   - metainfo of the shared file
+     * @param listener   - told the outcome
+     */
+    public void verify(int pieceIndex, MetaInfo metaInfo, VerificationListener listener) {
+        pool.execute(() -> {
+            byte[] digest = new byte[digestLength];
+            boolean valid;
+            try {
+                hashPiece(pieceIndex, digest, 0);
+                valid = metaInfo.matches(pieceIndex, digest, 0);
+            } catch (IOException e) {
+                valid = false;
+            }
+            listener.pieceVerified(valid);
+        });
+    }
+
+    /**
+     * Stops the threads of the pool.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Reads a piece from the store and computes its digest.
+     *
+     * @param pieceIndex - index of the piece
+     * @param digests    - array receiving the digest
+     * @param offset     - position of the digest in the array
+     * @throws IOException if the piece cannot be read
+     */
+    private void hashPiece(int pieceIndex, byte[] digests, int offset) throws IOException {
+        byte[] piece = threadPieceBuffer.get();
+        int length = PieceStore.pieceLength(pieceIndex);
+        pieceStore.read(pieceIndex, 0, piece, 0, length);
+        MessageDigest digest = threadDigest.get();
+        digest.update(piece, 0, length);
+        try {
+            digest.digest(digests, offset, digestLength);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hashes a range of pieces, splitting it in halves while it is larger than MAX_RANGE_BYTES.
+     */
+    private final class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        // Index of the first piece of the range
+        private final int from;
+        // Index following the last piece of the range
+        private final int to;
+        // Bitfield of the pieces hashed, null to hash every piece
+        private final transient BitFieldMessage selectedPieces;
+        // Array receiving the digest of piece i at position i * digestLength
+        private final byte[] digests;
+
+        HashTask(int from, int to, BitFieldMessage selectedPieces, byte[] digests) {
+            this.from = from;
+            this.to = to;
+            this.selectedPieces = selectedPieces;
+            this.digests = digests;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && (long) (to - from) * ConfigSettings.pieceSize > MAX_RANGE_BYTES) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(from, middle, selectedPieces, digests), new HashTask(middle, to, selectedPieces, digests));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                if (selectedPieces != null && !selectedPieces.hasPiece(i))
+                    continue;
+                try {
+                    hashPiece(i, digests, i * digestLength);
+                } catch (IOException e) {
+                    //a piece which is checked and cannot be read keeps an empty digest and is downloaded again
+                    if (selectedPieces == null)
+                        throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+}
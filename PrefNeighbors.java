@@ -1,6 +1,4 @@
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.util.*;
 
 /**
@@ -15,17 +13,14 @@ public class PrefNeighbors extends TimerTask {
     public void run() {
         int countInterested = 0;
         StringBuilder preferredNeighbors = new StringBuilder();
-        //updates remotePeerInfo lost
-        peerProcess.updateOtherPeerDetails();
-        //
-        Set<String> remotePeerIDs = peerProcess.remotePeerInfoMap.keySet();
-        for (String key : remotePeerIDs) {
-            RemotePeerInfo remotePeerDetails = peerProcess.remotePeerInfoMap.get(key);
-            if (!key.equals(peerProcess.currentPeerID)) {
+        PeerTable peerTable = peerProcess.peerTable;
+        PeerTable.PeerSet preferredNeighborSet = peerTable.getPreferredNeighbors();
+        for (RemotePeerInfo remotePeerDetails : peerTable.getPeers()) {
+            if (remotePeerDetails.getIndex() != peerProcess.currentPeerIndex) {
                 if (remotePeerDetails.getIsComplete() == 0 && remotePeerDetails.getIsInterested() == 1) {
                     countInterested++;
                 } else if (remotePeerDetails.getIsComplete() == 1) {
-                    peerProcess.preferredNeighboursMap.remove(key);
+                    preferredNeighborSet.remove(remotePeerDetails.getIndex());
                 }
             }
         }
@@ -33,10 +28,9 @@ public class PrefNeighbors extends TimerTask {
         if (countInterested > ConfigSettings.numberOfPreferredNeighbours) {
             //If there are more number of interested neighbors than needed, add the first 'CommonConfiguration.numberOfPreferredNeighbours'
             // number of interested neighbors to preferred neighbors to list
-            if (!peerProcess.preferredNeighboursMap.isEmpty())
-                peerProcess.preferredNeighboursMap.clear();
-            List<RemotePeerInfo> pv = new ArrayList(peerProcess.remotePeerInfoMap.values());
-            int isCompleteFilePresent = peerProcess.remotePeerInfoMap.get(peerProcess.currentPeerID).getIsComplete();
+            preferredNeighborSet.clear();
+            List<RemotePeerInfo> pv = new ArrayList<>(peerTable.getPeers());
+            int isCompleteFilePresent = peerTable.getPeer(peerProcess.currentPeerIndex).getIsComplete();
             if (isCompleteFilePresent == 1) {
                 Collections.shuffle(pv);
             } else {
@@ -46,39 +40,37 @@ public class PrefNeighbors extends TimerTask {
             for (int i = 0; i < pv.size(); i++) {
                 if (count > ConfigSettings.numberOfPreferredNeighbours - 1)
                     break;
-                if (pv.get(i).getIsInterested() == 1 && !pv.get(i).getPeerId().equals(peerProcess.currentPeerID)
-                        && peerProcess.remotePeerInfoMap.get(pv.get(i).getPeerId()).getIsComplete() == 0) {
-                    peerProcess.remotePeerInfoMap.get(pv.get(i).getPeerId()).setIsPreferredNeighbor(1);
-                    peerProcess.preferredNeighboursMap.put(pv.get(i).getPeerId(), peerProcess.remotePeerInfoMap.get(pv.get(i).getPeerId()));
+                RemotePeerInfo remotePeerDetails = pv.get(i);
+                int slot = remotePeerDetails.getIndex();
+                if (remotePeerDetails.getIsInterested() == 1 && slot != peerProcess.currentPeerIndex
+                        && remotePeerDetails.getIsComplete() == 0) {
+                    remotePeerDetails.setIsPreferredNeighbor(1);
+                    preferredNeighborSet.add(slot);
 
                     count++;
 
-                    preferredNeighbors.append(pv.get(i).getPeerId()).append(",");
-                    if (peerProcess.remotePeerInfoMap.get(pv.get(i).getPeerId()).getIsChoked() == 1) {
-                        sendUnChokedMessage(peerProcess.peerToSocketMap.get(pv.get(i).getPeerId()), pv.get(i).getPeerId());
-                        peerProcess.remotePeerInfoMap.get(pv.get(i).getPeerId()).setIsChoked(0);
-                        sendHaveMessage(peerProcess.peerToSocketMap.get(pv.get(i).getPeerId()), pv.get(i).getPeerId());
-                        peerProcess.remotePeerInfoMap.get(pv.get(i).getPeerId()).setPeerState(3);
+                    preferredNeighbors.append(remotePeerDetails.getPeerId()).append(",");
+                    //only the thread which unchokes the peer sends the UNCHOKE message
+                    if (remotePeerDetails.unchoke(3)) {
+                        sendUnChokedMessage(peerTable.getConnection(slot), remotePeerDetails.getPeerId());
+                        sendBitFieldMessage(peerTable.getConnection(slot), remotePeerDetails.getPeerId());
                     }
                 }
             }
         } else {
             //add all the interested neighbors to list
-            remotePeerIDs = peerProcess.remotePeerInfoMap.keySet();
-            for (String key : remotePeerIDs) {
-                RemotePeerInfo remotePeerDetails = peerProcess.remotePeerInfoMap.get(key);
-                if (!key.equals(peerProcess.currentPeerID)) {
+            for (RemotePeerInfo remotePeerDetails : peerTable.getPeers()) {
+                int slot = remotePeerDetails.getIndex();
+                if (slot != peerProcess.currentPeerIndex) {
                     if (remotePeerDetails.getIsComplete() == 0 && remotePeerDetails.getIsInterested() == 1) {
-                        if (!peerProcess.preferredNeighboursMap.containsKey(key)) {
-                            preferredNeighbors.append(key).append(",");
-                            peerProcess.preferredNeighboursMap.put(key, peerProcess.remotePeerInfoMap.get(key));
-                            peerProcess.remotePeerInfoMap.get(key).setIsPreferredNeighbor(1);
+                        if (!preferredNeighborSet.contains(slot)) {
+                            preferredNeighbors.append(remotePeerDetails.getPeerId()).append(",");
+                            preferredNeighborSet.add(slot);
+                            remotePeerDetails.setIsPreferredNeighbor(1);
                         }
-                        if (remotePeerDetails.getIsChoked() == 1) {
-                            sendUnChokedMessage(peerProcess.peerToSocketMap.get(key), key);
-                            peerProcess.remotePeerInfoMap.get(key).setIsChoked(0);
-                            sendHaveMessage(peerProcess.peerToSocketMap.get(key), key);
-                            peerProcess.remotePeerInfoMap.get(key).setPeerState(3);
+                        if (remotePeerDetails.unchoke(3)) {
+                            sendUnChokedMessage(peerTable.getConnection(slot), remotePeerDetails.getPeerId());
+                            sendBitFieldMessage(peerTable.getConnection(slot), remotePeerDetails.getPeerId());
                         }
                     }
                 }
@@ -92,40 +84,38 @@ public class PrefNeighbors extends TimerTask {
     }
 
     /**
-     * This method is used to send UNCHOKE message to socket
-     * @param socket - socket in which the message to be sent
+     * This method is used to send UNCHOKE message to connection
+     * @param connection - connection through which the message to be sent
      * @param remotePeerID - peerID to which the message should be sent
      */
-    private static void sendUnChokedMessage(Socket socket, String remotePeerID) {
+    private static void sendUnChokedMessage(PeerConnection connection, String remotePeerID) {
         logAndShowInConsole(peerProcess.currentPeerID + " sending a UNCHOKE message to Peer " + remotePeerID);
-        BaseMsg message = new BaseMsg(MsgConstants.MESSAGE_UNCHOKE);
-        SendMessageToSocket(socket, BaseMsg.convertMessageToByteArray(message));
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_UNCHOKE, null);
     }
 
 
     /**
-     * This method is used to send HAVE message to socket
-     * @param socket - socket in which the message to be sent
+     * This method is used to send BITFIELD message to connection. It is sent once after unchoking a peer
+     * so that the peer re-evaluates its interest, single pieces are announced with HAVE messages.
+     * @param connection - connection through which the message to be sent
      * @param peerID - peerID to which the message should be sent
      */
-    private void sendHaveMessage(Socket socket, String peerID) {
-        //logAndShowInConsole(peerProcess.currentPeerID + " sending HAVE message to Peer " + peerID);
-        byte[] bitFieldInBytes = peerProcess.bitFieldMsg.getBytes();
-        BaseMsg message = new BaseMsg(MsgConstants.MESSAGE_HAVE, bitFieldInBytes);
-        SendMessageToSocket(socket, BaseMsg.convertMessageToByteArray(message));
-
-        bitFieldInBytes = null;
+    private void sendBitFieldMessage(PeerConnection connection, String peerID) {
+        //logAndShowInConsole(peerProcess.currentPeerID + " sending BITFIELD message to Peer " + peerID);
+        SendMessageToConnection(connection, MsgConstants.MESSAGE_BITFIELD, peerProcess.bitFieldMsg.getBytes());
     }
 
     /**
-     * This method is used to write a message to socket
-     * @param socket - socket in which the message to be sent
-     * @param messageInBytes - message to be sent
+     * This method is used to write a message to connection
+     * @param connection - connection through which the message to be sent
+     * @param messageType - type of the message to be sent
+     * @param payload - content of the message, null for messages without payload
      */
-    private static void SendMessageToSocket(Socket socket, byte[] messageInBytes) {
+    private static void SendMessageToConnection(PeerConnection connection, byte messageType, byte[] payload) {
+        if (connection == null)
+            return;
         try {
-            OutputStream out = socket.getOutputStream();
-            out.write(messageInBytes);
+            connection.sendMessage(messageType, payload);
         } catch (IOException e) {
         }
     }
@@ -1,33 +1,43 @@
-import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Date;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * This class is used to store remote peer details information
+ * This class is used to store remote peer details information.
+ * The peer state and the choked, interested, handshaked, complete and neighbor flags are packed into one word which
+ * is only changed by compare-and-set. The reader threads, the message processor and the neighbor selection timers
+ * update a peer without locking, no update overwrites another, and transitions changing several of them, such as
+ * unchoking a peer and moving it to a new state, take effect at once.
  */
 public class RemotePeerInfo {
+    // Layout of the state word: peer state in bits 0-7, previous peer state in bits 8-15, flags above
+    private static final long PEER_STATE_MASK = 0xFFL;
+    private static final int PREVIOUS_PEER_STATE_SHIFT = 8;
+    private static final long PREVIOUS_PEER_STATE_MASK = 0xFFL << PREVIOUS_PEER_STATE_SHIFT;
+    private static final long CHOKED = 1L << 16;
+    private static final long INTERESTED = 1L << 17;
+    private static final long HANDSHAKED = 1L << 18;
+    private static final long COMPLETE = 1L << 19;
+    private static final long PREFERRED_NEIGHBOR = 1L << 20;
+    private static final long OPTIMISTICALLY_UNCHOKED_NEIGHBOR = 1L << 21;
+    // Passed as the peer state by transitions which leave it unchanged
+    private static final int KEEP_PEER_STATE = Integer.MIN_VALUE;
+
     private String peerId;
     private String hostAddress;
     private String port;
     private int hasFile;
     private int index;
-    private int peerState = -1;
-    private int previousPeerState = -1;
-    private int isPreferredNeighbor = 0;
-    private BitFieldMessage bitFieldMessage;
-    private int isOptimisticallyUnchokedNeighbor;
-    private int isInterested;
-    private int isHandshaked;
-    private int isChoked;
-    private int isComplete;
+    private final AtomicLong state = new AtomicLong(PEER_STATE_MASK | PREVIOUS_PEER_STATE_MASK);
+    private volatile BitFieldMessage bitFieldMessage;
     private Date startTime;
     private Date endTime;
-    private double downloadRate;
+    private volatile double downloadRate;
+    private final RequestWindow requestWindow = new RequestWindow();
+    // Requests of the peer received and not yet taken up by the message processor, by piece index
+    private final Map<Integer, PendingRequests> pendingRequests = new HashMap<>();
+    private volatile boolean supportsBlocks;
 
     /**
      * Initializes a new instance of RemotePeerDetails.
@@ -37,9 +47,11 @@ public class RemotePeerInfo {
         this.hostAddress = hostAddress;
         this.port = port;
         this.hasFile = hasFile;
+        if (hasFile == 1) {
+            transition(0, COMPLETE, KEEP_PEER_STATE);
+        }
         this.index = index;
         this.downloadRate = 0;
-        this.isOptimisticallyUnchokedNeighbor = 0;
     }
 
     public String getPeerId() {
@@ -89,19 +101,31 @@ public class RemotePeerInfo {
      * @return 1 - peer is preferred neighbor; 0 - peer is not preferred neighbor
      */
     public int getIsPreferredNeighbor() {
-        return this.isPreferredNeighbor;
+        return getFlag(PREFERRED_NEIGHBOR);
     }
 
     public void setIsPreferredNeighbor(int isPreferredNeighbor) {
-        this.isPreferredNeighbor = isPreferredNeighbor;
+        setFlag(PREFERRED_NEIGHBOR, isPreferredNeighbor);
     }
 
     public int getPeerState() {
-        return peerState;
+        return (byte) (state.get() & PEER_STATE_MASK);
     }
 
     public void setPeerState(int peerState) {
-        this.peerState = peerState;
+        transition(0, 0, peerState);
+    }
+
+    /**
+     * Moves the peer to a new state unless another thread has moved it out of the expected state in between.
+     * Every step of the state machine goes through here, so a step never overwrites a concurrent change.
+     *
+     * @param expectedPeerState - the state the step starts from
+     * @param peerState         - the new state of the peer
+     * @return true if the peer was in the expected state and has been moved
+     */
+    public boolean compareAndSetPeerState(int expectedPeerState, int peerState) {
+        return transition(expectedPeerState, 0, 0, peerState);
     }
 
     public BitFieldMessage getBitFieldMessage() {
@@ -112,28 +136,98 @@ public class RemotePeerInfo {
         this.bitFieldMessage = bitFieldMessage;
     }
 
+    public RequestWindow getRequestWindow() {
+        return requestWindow;
+    }
+
+    /**
+     * Records a REQUEST or block REQUEST of the peer when it arrives, before it is queued for the message processor.
+     *
+     * @param pieceIndex - index of the requested piece
+     */
+    public void requestReceived(int pieceIndex) {
+        synchronized (pendingRequests) {
+            pendingRequests.computeIfAbsent(pieceIndex, key -> new PendingRequests()).received++;
+        }
+    }
+
+    /**
+     * Cancels every request for a piece, of the whole piece or of its blocks, which has arrived and is not taken up
+     * yet. Requests arriving later are served, and a CANCEL matching no pending request is ignored.
+     *
+     * @param pieceIndex - index of the piece
+     * @return number of requests cancelled
+     */
+    public int cancelRequests(int pieceIndex) {
+        synchronized (pendingRequests) {
+            PendingRequests requests = pendingRequests.get(pieceIndex);
+            if (requests == null)
+                return 0;
+            requests.cancelled = requests.received;
+            return requests.cancelled;
+        }
+    }
+
+    /**
+     * Takes up the oldest pending request for a piece. Requests of a peer are taken up in the order they arrived, so
+     * the cancelled ones are the first ones taken up.
+     *
+     * @param pieceIndex - index of the requested piece
+     * @return true if the request has been cancelled and must not be served
+     */
+    public boolean takeRequest(int pieceIndex) {
+        synchronized (pendingRequests) {
+            PendingRequests requests = pendingRequests.get(pieceIndex);
+            if (requests == null)
+                return false;
+            boolean cancelled = requests.cancelled > 0;
+            if (cancelled)
+                requests.cancelled--;
+            if (--requests.received == 0)
+                pendingRequests.remove(pieceIndex);
+            return cancelled;
+        }
+    }
+
+    /**
+     * Forgets the pending requests once the connection to the peer is closed.
+     */
+    public void clearPendingRequests() {
+        synchronized (pendingRequests) {
+            pendingRequests.clear();
+        }
+    }
+
+    public boolean supportsBlocks() {
+        return supportsBlocks;
+    }
+
+    public void setSupportsBlocks(boolean supportsBlocks) {
+        this.supportsBlocks = supportsBlocks;
+    }
+
     public int getIsInterested() {
-        return isInterested;
+        return getFlag(INTERESTED);
     }
 
     public void setIsInterested(int isInterested) {
-        this.isInterested = isInterested;
+        setFlag(INTERESTED, isInterested);
     }
 
     public int getIsHandShaked() {
-        return isHandshaked;
+        return getFlag(HANDSHAKED);
     }
 
     public void setIsHandShaked(int isHandShaked) {
-        this.isHandshaked = isHandShaked;
+        setFlag(HANDSHAKED, isHandShaked);
     }
 
     public int getIsChoked() {
-        return isChoked;
+        return getFlag(CHOKED);
     }
 
     public void setIsChoked(int isChoked) {
-        this.isChoked = isChoked;
+        setFlag(CHOKED, isChoked);
     }
 
     public Date getStartTime() {
@@ -161,51 +255,170 @@ public class RemotePeerInfo {
     }
 
     public int getIsComplete() {
-        return isComplete;
+        return getFlag(COMPLETE);
     }
 
     public void setIsComplete(int isComplete) {
-        this.isComplete = isComplete;
+        setFlag(COMPLETE, isComplete);
     }
 
     public int getIsOptimisticallyUnchockedNeighbor() {
-        return isOptimisticallyUnchokedNeighbor;
+        return getFlag(OPTIMISTICALLY_UNCHOKED_NEIGHBOR);
     }
 
     public void setIsOptimisticallyUnchockedNeighbor(int isOptimisticallyUnchockedNeighbor) {
-        this.isOptimisticallyUnchokedNeighbor = isOptimisticallyUnchockedNeighbor;
+        setFlag(OPTIMISTICALLY_UNCHOKED_NEIGHBOR, isOptimisticallyUnchockedNeighbor);
     }
 
+    /**
+     * @return state of the peer before its last state change
+     */
     public int getPreviousPeerState() {
-        return previousPeerState;
+        return (byte) ((state.get() & PREVIOUS_PEER_STATE_MASK) >>> PREVIOUS_PEER_STATE_SHIFT);
+    }
+
+    /**
+     * Records that the peer has the complete file, as learnt from its DOWNLOADED message or its bitfield.
+     * A complete peer is neither interested nor choked.
+     */
+    public void markComplete() {
+        transition(INTERESTED | CHOKED, COMPLETE, KEEP_PEER_STATE);
+    }
+
+    /**
+     * Records the INTERESTED or NOT INTERESTED message of the peer, which also completes its handshake.
+     * A complete peer stays not interested.
+     *
+     * @param interested - true if the peer is interested
+     */
+    public void recordInterest(boolean interested) {
+        long word;
+        do {
+            word = state.get();
+        } while (!state.compareAndSet(word, interested && (word & COMPLETE) == 0
+                ? word | INTERESTED | HANDSHAKED : (word & ~INTERESTED) | HANDSHAKED));
     }
 
-    public void setPreviousPeerState(int previousPeerState) {
-        this.previousPeerState = previousPeerState;
+    /**
+     * Chokes the peer and moves it to a new state in one step, unless it has left the expected state.
+     *
+     * @param expectedPeerState - the state the step starts from
+     * @param peerState         - the new state of the peer
+     * @return true if the peer was in the expected state and has been choked
+     */
+    public boolean choke(int expectedPeerState, int peerState) {
+        return transition(expectedPeerState, 0, CHOKED, peerState);
     }
 
     /**
-     * Updates the peer details in the configuration file.
+     * Unchokes the peer and moves it to a new state in one step, unless it is unchoked already. Of several threads
+     * unchoking the peer at the same time only one succeeds, so the UNCHOKE message is sent once.
      *
-     * @param currentPeerId - The ID of the peer to be updated.
-     * @param hasFile       - The updated file availability status.
-     * @throws IOException
+     * @param peerState - the new state of the peer
+     * @return true if the peer was choked and has been unchoked by this call
      */
-    public void updatePeerDetails(String currentPeerId, int hasFile) throws IOException {
-        Path configPath = Paths.get("PeerInfo.cfg");
-        Stream<String> linesStream = Files.lines(configPath);
+    public boolean unchoke(int peerState) {
+        long word;
+        do {
+            word = state.get();
+            if ((word & CHOKED) == 0)
+                return false;
+        } while (!state.compareAndSet(word, withPeerState(word & ~CHOKED, word, peerState)));
+        return true;
+    }
 
-        List<String> modifiedLines = linesStream.map(line -> {
-            String[] components = line.trim().split("\\s+");
-            if (components[0].equals(currentPeerId)) {
-                return components[0] + " " + components[1] + " " + components[2] + " " + hasFile;
-            } else {
-                return line;
-            }
-        }).collect(Collectors.toList());
+    /**
+     * Unchokes the peer and moves it to a new state in one step, whether it was choked or not, unless it has left
+     * the expected state.
+     *
+     * @param expectedPeerState - the state the step starts from
+     * @param peerState         - the new state of the peer
+     * @return true if the peer was in the expected state and has been unchoked
+     */
+    public boolean forceUnchoke(int expectedPeerState, int peerState) {
+        return transition(expectedPeerState, CHOKED, 0, peerState);
+    }
 
-        Files.write(configPath, modifiedLines);
-        linesStream.close();
+    /**
+     * @return true if the peer is interested and choked and does not have the complete file, read at one instant
+     */
+    public boolean isChokedAndInterested() {
+        return (state.get() & (COMPLETE | CHOKED | INTERESTED)) == (CHOKED | INTERESTED);
+    }
+
+    /**
+     * @return true if the peer is interested and unchoked and does not have the complete file, read at one instant
+     */
+    public boolean isUnchokedAndInterested() {
+        return (state.get() & (COMPLETE | CHOKED | INTERESTED)) == INTERESTED;
+    }
+
+    /**
+     * @return 1 if the flag is set in the state word; 0 otherwise
+     */
+    private int getFlag(long flag) {
+        return (state.get() & flag) != 0 ? 1 : 0;
+    }
+
+    /**
+     * Sets or clears a flag of the state word.
+     */
+    private void setFlag(long flag, int value) {
+        if (value != 0) {
+            transition(0, flag, KEEP_PEER_STATE);
+        } else {
+            transition(flag, 0, KEEP_PEER_STATE);
+        }
+    }
+
+    /**
+     * Clears and sets flags of the state word and changes the peer state in one compare-and-set, retried until no
+     * other thread has changed the word in between.
+     *
+     * @param clearFlags - flags to clear
+     * @param setFlags   - flags to set
+     * @param peerState  - the new state of the peer, or KEEP_PEER_STATE to leave it unchanged
+     * @return the state word before the transition
+     */
+    private long transition(long clearFlags, long setFlags, int peerState) {
+        long word;
+        do {
+            word = state.get();
+        } while (!state.compareAndSet(word, withPeerState((word & ~clearFlags) | setFlags, word, peerState)));
+        return word;
+    }
+
+    /**
+     * Clears and sets flags of the state word and changes the peer state in one compare-and-set, provided the peer is
+     * in the expected state. Retried while other threads change the word but leave the peer in that state.
+     *
+     * @param expectedPeerState - the state the transition starts from
+     * @param clearFlags        - flags to clear
+     * @param setFlags          - flags to set
+     * @param peerState         - the new state of the peer
+     * @return true if the peer was in the expected state and the transition has taken effect
+     */
+    private boolean transition(int expectedPeerState, long clearFlags, long setFlags, int peerState) {
+        long word;
+        do {
+            word = state.get();
+            if ((byte) (word & PEER_STATE_MASK) != expectedPeerState)
+                return false;
+        } while (!state.compareAndSet(word, withPeerState((word & ~clearFlags) | setFlags, word, peerState)));
+        return true;
+    }
+
+    /**
+     * @param next      - the new state word, holding the peer state of the old word
+     * @param word      - the old state word
+     * @param peerState - the new state of the peer, or KEEP_PEER_STATE to leave it unchanged
+     * @return the new state word holding the new peer state, the old one is kept as the previous peer state
+     */
+    private static long withPeerState(long next, long word, int peerState) {
+        if (peerState == KEEP_PEER_STATE)
+            return next;
+        return (next & ~(PEER_STATE_MASK | PREVIOUS_PEER_STATE_MASK))
+                | ((word & PEER_STATE_MASK) << PREVIOUS_PEER_STATE_SHIFT) | (peerState & PEER_STATE_MASK);
     }
 
     /**
@@ -222,4 +435,14 @@ public class RemotePeerInfo {
         else
             return -1;
     }
+
+    /**
+     * Requests for one piece which are received and not yet taken up.
+     */
+    private static final class PendingRequests {
+        // Number of requests received and not yet taken up
+        private int received;
+        // Number of the oldest of them which have been cancelled
+        private int cancelled;
+    }
 }
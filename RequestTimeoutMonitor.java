@@ -0,0 +1,72 @@
+import java.util.List;
+import java.util.TimerTask;
+
+/**
+ * Class for giving up the piece requests which have not been answered before their deadline.
+ * The pieces are released to the piece picker and the peers which are unchoking us are asked to refill their request
+ * windows, so the pieces are requested again from another peer instead of stalling the download.
+ */
+public class RequestTimeoutMonitor extends TimerTask {
+
+    // Interval between two checks of the deadlines in milliseconds
+    public static final int CHECK_INTERVAL_MILLIS = 100;
+
+    // Message delivered to a peer's actor when pieces were released, it carries no payload and is never modified
+    private static final BaseMsg PIECES_RELEASED_MESSAGE = newPiecesReleasedMessage();
+
+    /**
+     * Executes at regular intervals to release the pieces of the requests which missed their deadline.
+     */
+    @Override
+    public void run() {
+        boolean piecesReleased = false;
+        for (RemotePeerInfo peerInfo : peerProcess.peerTable.getPeers()) {
+            List<Integer> expiredPieces = peerInfo.getRequestWindow().removeExpired();
+            for (int pieceIndex : expiredPieces) {
+                displayLog(peerProcess.currentPeerID + " REQUEST for piece " + pieceIndex + " to Peer "
+                        + peerInfo.getPeerId() + " timed out");
+            }
+            if (!expiredPieces.isEmpty()) {
+                peerProcess.piecePicker.release(peerInfo, expiredPieces);
+                piecesReleased = true;
+            }
+        }
+        if (piecesReleased) {
+            requestReleasedPieces(null);
+        }
+    }
+
+    /**
+     * Asks every peer which is unchoking us to refill its request window, so that released pieces are requested
+     * again. The request is delivered as a message to the actor of the peer, which owns the state of the peer.
+     * Peers whose inbound queue is full are skipped, they refill their window with the next piece they send.
+     *
+     * @param releasingPeer - peer whose pieces were released, it is not asked; null to ask every peer
+     */
+    public static void requestReleasedPieces(RemotePeerInfo releasingPeer) {
+        for (RemotePeerInfo peerInfo : peerProcess.peerTable.getPeers()) {
+            if (peerInfo.getPeerState() == 11 && peerInfo != releasingPeer) {
+                peerProcess.inboundMsgPipeline.offerMessage(new MsgDetails(PIECES_RELEASED_MESSAGE, peerInfo));
+            }
+        }
+    }
+
+    /**
+     * @return the message delivered to a peer's actor when pieces were released
+     */
+    private static BaseMsg newPiecesReleasedMessage() {
+        BaseMsg message = new BaseMsg();
+        message.setMessageType(MsgConstants.MESSAGE_PIECES_RELEASED);
+        message.setMessageLength(MsgConstants.MESSAGE_TYPE);
+        return message;
+    }
+
+    /**
+     * Logs a message and displays it in the console.
+     *
+     * @param message - Message to be logged and displayed.
+     */
+    private static void displayLog(String message) {
+        LoggingHelper.logAndDisplay(message);
+    }
+}
@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Tracks the REQUEST messages sent to one remote peer which have not been answered by a PIECE yet.
+ * The number of requests kept in flight adapts to the bandwidth-delay product of the peer: the measured piece
+ * rate multiplied by the round-trip time, in pieces, plus one so that the next request is already on its way
+ * when a piece arrives. It is bounded by the RequestWindowSize setting.
+ * A request is identified by the index of the piece requested, or by the number of the block requested when the peer
+ * supports block requests, in which case a block counts as a piece here.
+ * Every request has a deadline derived from the measured time until a request is answered, as TCP derives its
+ * retransmission timeout: the smoothed answer time plus four times its mean deviation. A request missing its deadline
+ * doubles the deadline of the following ones and shrinks the window to a single request until the peer answers again.
+ */
+public class RequestWindow {
+
+    // Number of requests in flight before any piece of the peer has been measured
+    private static final int INITIAL_DEPTH = 2;
+    // Weight of a new sample in the smoothed piece rate
+    private static final double RATE_SMOOTHING = 0.25;
+    // Weight of a new sample in the smoothed answer time
+    private static final double ANSWER_TIME_SMOOTHING = 0.125;
+    // Weight of a new sample in the mean deviation of the answer time
+    private static final double DEVIATION_SMOOTHING = 0.25;
+    // Shortest deadline of a request, one second as the minimum retransmission timeout of TCP, so that a short
+    // burst of delay does not give up requests which are about to be answered
+    private static final long MIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Pieces requested and not received yet with the time the request was sent, in request order
+    private final Map<Integer, Long> outstandingRequests = new LinkedHashMap<>();
+    // Number of requests currently allowed in flight
+    private int depth = INITIAL_DEPTH;
+    // Smallest time between sending a request and receiving its piece
+    private long minRoundTripNanos = Long.MAX_VALUE;
+    // Smoothed rate at which pieces of the peer arrive, in bytes per nanosecond
+    private double bytesPerNano;
+    // Arrival time of the previous piece while requests were in flight, 0 if there is none
+    private long lastArrivalNanos;
+    // Smoothed time between sending a request and receiving its piece, 0 before the first piece
+    private double smoothedAnswerNanos;
+    // Smoothed mean deviation of the answer time
+    private double answerDeviationNanos;
+    // Factor the deadline is multiplied with, doubled by every timeout until the peer answers again
+    private int timeoutBackoff = 1;
+
+    /**
+     * @return true if another request may be sent to the peer
+     */
+    public synchronized boolean hasRoom() {
+        return outstandingRequests.size() < Math.min(depth, maxDepth());
+    }
+
+    /**
+     * @param pieceIndex - index of a piece
+     * @return true if the piece has been requested from the peer and not received yet
+     */
+    public synchronized boolean isOutstanding(int pieceIndex) {
+        return outstandingRequests.containsKey(pieceIndex);
+    }
+
+    /**
+     * @return number of requests in flight
+     */
+    public synchronized int size() {
+        return outstandingRequests.size();
+    }
+
+    /**
+     * @return true if no request is in flight
+     */
+    public synchronized boolean isEmpty() {
+        return outstandingRequests.isEmpty();
+    }
+
+    /**
+     * @return number of requests currently allowed in flight
+     */
+    public synchronized int getDepth() {
+        return Math.min(depth, maxDepth());
+    }
+
+    /**
+     * Records a request sent to the peer.
+     *
+     * @param pieceIndex - index of the piece requested
+     */
+    public synchronized void requestSent(int pieceIndex) {
+        outstandingRequests.put(pieceIndex, System.nanoTime());
+    }
+
+    /**
+     * Records a piece received from the peer and adapts the number of requests kept in flight.
+     *
+     * @param pieceIndex - index of the piece received
+     * @param length     - number of bytes received
+     * @return true if the piece had been requested from the peer
+     */
+    public synchronized boolean pieceReceived(int pieceIndex, int length) {
+        Long sentNanos = outstandingRequests.remove(pieceIndex);
+        if (sentNanos == null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        long answerNanos = Math.max(1, now - sentNanos);
+        //pieces are answered in order, so later requests also wait behind earlier ones and only the minimum is a round trip
+        minRoundTripNanos = Math.min(minRoundTripNanos, answerNanos);
+        //the deadline on the other hand covers the wait behind earlier requests, so every answer time is a sample
+        if (smoothedAnswerNanos == 0) {
+            smoothedAnswerNanos = answerNanos;
+            answerDeviationNanos = answerNanos / 2.0;
+        } else {
+            answerDeviationNanos += DEVIATION_SMOOTHING * (Math.abs(answerNanos - smoothedAnswerNanos) - answerDeviationNanos);
+            smoothedAnswerNanos += ANSWER_TIME_SMOOTHING * (answerNanos - smoothedAnswerNanos);
+        }
+        timeoutBackoff = 1;
+        if (lastArrivalNanos != 0) {
+            double sample = (double) length / Math.max(1, now - lastArrivalNanos);
+            bytesPerNano = bytesPerNano == 0 ? sample : bytesPerNano + RATE_SMOOTHING * (sample - bytesPerNano);
+            double requestsInFlight = bytesPerNano * minRoundTripNanos / length;
+            depth = (int) Math.max(1, Math.min(maxDepth(), Math.ceil(requestsInFlight) + 1));
+        }
+        lastArrivalNanos = outstandingRequests.isEmpty() ? 0 : now;
+        return true;
+    }
+
+    /**
+     * Forgets the requests which belong to a piece that has arrived from another peer.
+     *
+     * @param pieceOfRequest - maps a request to the index of the piece it belongs to
+     * @param pieceIndex     - index of the piece
+     * @return true if a request of the piece was in flight
+     */
+    public synchronized boolean cancelPiece(IntUnaryOperator pieceOfRequest, int pieceIndex) {
+        boolean cancelled = outstandingRequests.keySet().removeIf(requestKey -> pieceOfRequest.applyAsInt(requestKey) == pieceIndex);
+        if (outstandingRequests.isEmpty())
+            lastArrivalNanos = 0;
+        return cancelled;
+    }
+
+    /**
+     * @return time a request may stay unanswered before it is given up
+     */
+    public synchronized long getTimeoutNanos() {
+        long maxTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ConfigSettings.requestTimeout);
+        if (smoothedAnswerNanos == 0)
+            return maxTimeoutNanos;
+        double timeoutNanos = Math.max(MIN_TIMEOUT_NANOS, smoothedAnswerNanos + 4 * answerDeviationNanos) * timeoutBackoff;
+        return (long) Math.min(maxTimeoutNanos, timeoutNanos);
+    }
+
+    /**
+     * Forgets the requests which have missed their deadline.
+     *
+     * @return indices of the pieces whose requests timed out
+     */
+    public synchronized List<Integer> removeExpired() {
+        List<Integer> pieceIndices = new ArrayList<>();
+        long deadline = System.nanoTime() - getTimeoutNanos();
+        Iterator<Map.Entry<Integer, Long>> iterator = outstandingRequests.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Long> request = iterator.next();
+            //requests are kept in the order they were sent, so the first request in time ends the search
+            if (request.getValue() - deadline > 0)
+                break;
+            pieceIndices.add(request.getKey());
+            iterator.remove();
+        }
+        if (!pieceIndices.isEmpty()) {
+            //the peer is slower than measured or gone, keep a single request in flight until it answers again
+            timeoutBackoff = Math.min(timeoutBackoff * 2, 64);
+            depth = 1;
+        }
+        if (outstandingRequests.isEmpty())
+            lastArrivalNanos = 0;
+        return pieceIndices;
+    }
+
+    /**
+     * Forgets every request in flight, as the peer discards them when it chokes us.
+     *
+     * @return indices of the pieces which were requested
+     */
+    public synchronized List<Integer> clear() {
+        List<Integer> pieceIndices = new ArrayList<>(outstandingRequests.keySet());
+        outstandingRequests.clear();
+        lastArrivalNanos = 0;
+        return pieceIndices;
+    }
+
+    /**
+     * @return the configured upper bound of requests in flight
+     */
+    private static int maxDepth() {
+        return Math.max(1, ConfigSettings.requestWindowSize);
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connection to a remote peer over a blocking socket.
+ */
+public class SocketPeerConnection implements PeerConnection {
+
+    // Socket connected to the remote peer
+    private final Socket socket;
+    // Output stream of the socket
+    private final OutputStream outputStream;
+    // Serializes writes of several threads, a lock does not pin the carrier of a virtual thread while writing
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Reused to encode outgoing messages, guarded by writeLock
+    private byte[] sendBuffer = new byte[MsgCodec.HEADER_LENGTH];
+
+    /**
+     * Initializes the connection with a connected socket.
+     *
+     * @param socket - socket connected to the remote peer
+     * @throws IOException if the output stream of the socket cannot be obtained
+     */
+    public SocketPeerConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.outputStream = socket.getOutputStream();
+    }
+
+    /**
+     * @return socket connected to the remote peer
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void send(byte[] message) throws IOException {
+        writeLock.lock();
+        try {
+            outputStream.write(message);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Encodes the message into the reused send buffer, which grows to the largest message sent,
+     * and writes it with a single call.
+     */
+    @Override
+    public void sendMessage(byte messageType, byte[] payload) throws IOException {
+        writeLock.lock();
+        try {
+            int messageLength = MsgCodec.encodedLength(payload == null ? 0 : payload.length);
+            if (sendBuffer.length < messageLength) {
+                sendBuffer = new byte[messageLength];
+            }
+            MsgCodec.encode(sendBuffer, 0, messageType, payload);
+            outputStream.write(sendBuffer, 0, messageLength);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Encodes the header and the prefix into the reused send buffer and reads the data of the piece straight behind
+     * them, so the piece is copied once from the file and written with a single call.
+     */
+    @Override
+    public void sendFileMessage(byte messageType, byte[] prefix, PieceStore pieceStore, int pieceIndex, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            int messageLength = MsgCodec.encodedLength(prefix.length + length);
+            if (sendBuffer.length < messageLength) {
+                sendBuffer = new byte[messageLength];
+            }
+            MsgCodec.putInt(sendBuffer, 0, MsgConstants.MESSAGE_TYPE + prefix.length + length);
+            sendBuffer[MsgConstants.MESSAGE_LENGTH] = messageType;
+            System.arraycopy(prefix, 0, sendBuffer, MsgCodec.HEADER_LENGTH, prefix.length);
+            pieceStore.read(pieceIndex, offset, sendBuffer, MsgCodec.HEADER_LENGTH + prefix.length, length);
+            outputStream.write(sendBuffer, 0, messageLength);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Messages are written before the sending thread returns, so only a write in progress is waited for.
+     */
+    @Override
+    public boolean closeGracefully(long timeoutMillis) {
+        boolean drained = false;
+        try {
+            if (writeLock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                try {
+                    socket.shutdownOutput();
+                    drained = true;
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+        }
+        close();
+        return drained;
+    }
+}
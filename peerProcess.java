@@ -1,41 +1,50 @@
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.rmi.Remote;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handles the peer-to-peer process for file transfer.
  */
-@SuppressWarnings({"deprecation", "unchecked"})
 public class peerProcess {
     private Thread serverThread; // Thread handling file server
     private ServerSocket serverSocket = null;
     public static String currentPeerID;
-    private static int peerIdx;
+    public static int currentPeerIndex; // Slot of the current peer in the peer table
     public static boolean initialFilePeer = false;
     private static int peerPort;
     private static int hasFile;
     public static BitFieldMessage bitFieldMsg = null;
+    public static PiecePicker piecePicker = null; // Chooses the pieces to request, rarest first
+    public static PieceStore pieceStore = null; // Reads and writes the pieces of the shared file
+    public static DiskWriter diskWriter = null; // Writes the received pieces without blocking the message processing
+    public static PieceJournal pieceJournal = null; // Records the pieces stored, so that a restarted peer resumes its download
+    private static boolean resumedDownload = false; // Set when the peer continues the download of an earlier run
+    public static MetaInfo metaInfo = null; // Digests of the pieces, null when pieces are not verified
+    public static PieceVerifier pieceVerifier = null; // Checks the pieces against their digests on all cores
     private static Thread messageHandlerThread;
-    private static boolean downloadFinished = false;
+    private static ExecutorService messageWorkerPool; // Worker pool running the peer actors
+    private static PeerReactor peerReactor; // Non-blocking transport, null when a thread serves each connection
     private static Vector<Thread> receiverThreads = new Vector<>();
     public static Vector<Thread> fileServerThreads = new Vector<>();
     private static volatile Timer preferredNeighborTimer;
     private static volatile Timer optimisticNeighborTimer;
-    public static volatile ConcurrentHashMap<String, RemotePeerInfo> remotePeerInfoMap = new ConcurrentHashMap<>();
-    public static volatile ConcurrentHashMap<String, RemotePeerInfo> preferredNeighboursMap = new ConcurrentHashMap();
-    //Map to store peer sockets
-    public static volatile ConcurrentHashMap<String, Socket> peerToSocketMap = new ConcurrentHashMap();
-    //Map to store optimistically unchoked neighbors
-    public static volatile ConcurrentHashMap<String, RemotePeerInfo> optimisticUnchokedNeighbors = new ConcurrentHashMap();
+    private static volatile Timer requestTimeoutTimer; // Gives up the piece requests which missed their deadline
+    private static final CountDownLatch swarmCompleted = new CountDownLatch(1); // Released once every peer has the complete file
+    private static final long SHUTDOWN_TIMEOUT = 5000; // Longest time in milliseconds the shutdown waits for queued messages
+    //Peers of the swarm by slot, with their connections and the preferred and optimistically unchoked neighbors
+    public static volatile PeerTable peerTable = null;
+    //Pipeline carrying received messages to the message processor
+    public static final InboundMsgPipeline inboundMsgPipeline = new InboundMsgPipeline();
 
     public Thread getServerThread() {
         return serverThread;
@@ -57,6 +66,9 @@ public class peerProcess {
             initializeConfigurations();
             setPeerDetails();
             initializeBitField();
+            initializePieceStore();
+            initializeMetaInfo();
+            initializePiecePicker();
             startMessageHandler(process);
 
             //starting the file server thread and file threads
@@ -65,6 +77,8 @@ public class peerProcess {
             determinePreferredNeighbors();
             //update optimistically unchoked neighbor list
             determineOptimisticallyUnchockedNeighbours();
+            //release the pieces of requests which are not answered in time
+            monitorRequestTimeouts();
 
             endAllPeers(process);
         } catch (Exception e) {
@@ -74,56 +88,213 @@ public class peerProcess {
         }
     }
 
+    /**
+     * This method is used to wait until every peer of the swarm has the complete file and then to shut the current
+     * peer down. It is woken as soon as the last peer is recorded complete, without polling.
+     * @param process - the current peer process
+     */
     private static void endAllPeers(peerProcess process) {
-        while (true) {
-            downloadFinished = checkDownloadCompletion();
-
-            if (downloadFinished) {
-                logAndDisplay("All peers have completed file download.");
-                preferredNeighborTimer.cancel();
-                optimisticNeighborTimer.cancel();
-
-                try {
-                    Thread.currentThread();
-                    Thread.sleep(5000);
-                } catch (InterruptedException e) {
-                }
+        //the swarm may be complete already, when every peer starts with the file
+        checkSwarmCompletion();
+        try {
+            swarmCompleted.await();
+        } catch (InterruptedException e) {
+        }
+        logAndDisplay("All peers have completed file download.");
+        preferredNeighborTimer.cancel();
+        optimisticNeighborTimer.cancel();
+        requestTimeoutTimer.cancel();
+        stopThreads(process);
+    }
 
-                stopThreads(process);
-                break;
-            } else {
-                try {
-                    Thread.currentThread();
-                    Thread.sleep(15000);
-                } catch (InterruptedException e) {
-                }
-            }
+    /**
+     * This method is called whenever a peer has been recorded complete. It releases the shutdown once every peer of
+     * the swarm has the complete file.
+     */
+    public static void checkSwarmCompletion() {
+        if (checkDownloadCompletion()) {
+            swarmCompleted.countDown();
         }
     }
 
+    /**
+     * This method is used to stop the current peer in order. The peer stops accepting connections and processing
+     * messages, lets every connection write the messages still queued before closing it, and then closes the file.
+     * @param process - the current peer process
+     */
     private static void stopThreads(peerProcess process) {
-        terminateThread(process.getServerThread());
-        terminateThread(messageHandlerThread);
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        if (process.serverSocket != null) {
+            try {
+                process.serverSocket.close();
+            } catch (IOException e) {
+            }
+        }
+        stopThread(process.getServerThread());
+
+        stopThread(messageHandlerThread);
+        if (messageWorkerPool != null) {
+            messageWorkerPool.shutdownNow();
+            try {
+                messageWorkerPool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+            }
+        }
+
+        for (int slot = 0; slot < peerTable.size(); slot++) {
+            PeerConnection connection = peerTable.getConnection(slot);
+            if (connection != null) {
+                connection.closeGracefully(Math.max(0, deadline - System.currentTimeMillis()));
+            }
+        }
 
         for (Thread thread : receiverThreads) {
-            terminateThread(thread);
+            stopThread(thread);
         }
 
         for (Thread thread : fileServerThreads) {
-            terminateThread(thread);
+            stopThread(thread);
+        }
+
+        if (peerReactor != null) {
+            peerReactor.close();
+        }
+
+        if (diskWriter != null) {
+            diskWriter.close();
+        }
+
+        if (pieceVerifier != null) {
+            pieceVerifier.close();
+        }
+
+        if (pieceStore != null) {
+            pieceStore.close();
+        }
+
+        if (pieceJournal != null) {
+            pieceJournal.close();
         }
     }
 
-    @SuppressWarnings("removal")
-    private static void terminateThread(Thread thread) {
-        if (thread.isAlive()) {
-            thread.stop();
+    /**
+     * This method is used to ask a thread to stop. Threads blocked on a connection stop once it is closed.
+     * @param thread - the thread to stop
+     */
+    private static void stopThread(Thread thread) {
+        if (thread != null && thread.isAlive()) {
+            thread.interrupt();
         }
     }
 
-    private static void initializeBitField() {
+    /**
+     * This method is used to initialize the bitfield of the current peer. A peer which does not have the file
+     * initially preallocates the file and restores the pieces an earlier run has stored from the journal.
+     * @throws IOException if the journal cannot be opened
+     */
+    private static void initializeBitField() throws IOException {
         bitFieldMsg = new BitFieldMessage();
-        bitFieldMsg.setPieceDetails(currentPeerID, hasFile);
+        bitFieldMsg.setPieceDetails(hasFile);
+        if (!initialFilePeer) {
+            boolean fileReused = preallocateFile();
+            File journalFile = new File(currentPeerID, ConfigSettings.fileName + ".journal");
+            resumedDownload = fileReused && journalFile.isFile();
+            pieceJournal = new PieceJournal(journalFile);
+            int restoredPieces = pieceJournal.restore(bitFieldMsg, fileReused);
+            if (restoredPieces > 0) {
+                logAndDisplay(currentPeerID + " resumes the download with " + restoredPieces + " pieces stored by an earlier run");
+            }
+        }
+    }
+
+    /**
+     * This method is used to create the piece picker once the pieces present are known.
+     */
+    private static void initializePiecePicker() {
+        if (!initialFilePeer && bitFieldMsg.isFileDownloadComplete()) {
+            logAndDisplay(currentPeerID + " has DOWNLOADED the complete file.");
+            peerTable.getPeer(currentPeerIndex).markComplete();
+        }
+        piecePicker = new PiecePicker(bitFieldMsg);
+    }
+
+    /**
+     * This method is used to obtain the digests of the pieces. A peer having the file hashes its copy on all cores
+     * and writes the metainfo file, unless the metainfo is newer than the file already. A peer downloading the file
+     * waits for the metainfo and checks the pieces restored from the journal against it.
+     * @throws Exception if the file cannot be hashed, the metainfo cannot be written, or no metainfo matching
+     *                   Common.cfg appears within the MetaInfoTimeout
+     */
+    private static void initializeMetaInfo() throws Exception {
+        if (ConfigSettings.pieceDigest.equalsIgnoreCase("none"))
+            return;
+        pieceVerifier = new PieceVerifier(pieceStore);
+        File metaInfoFile = new File(ConfigSettings.fileName + ".metainfo");
+        if (initialFilePeer) {
+            metaInfo = MetaInfo.load(metaInfoFile, new File(currentPeerID, ConfigSettings.fileName).lastModified());
+            if (metaInfo == null) {
+                long start = System.nanoTime();
+                metaInfo = pieceVerifier.createMetaInfo();
+                metaInfo.save(metaInfoFile);
+                logAndDisplay(currentPeerID + " hashed the " + bitFieldMsg.getNumPieces() + " pieces of "
+                        + ConfigSettings.fileName + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            }
+            return;
+        }
+
+        //a metainfo left from another file is waited out as well, a seed hashing the file replaces it
+        long deadline = System.currentTimeMillis() + ConfigSettings.metaInfoTimeout;
+        MetaInfo found = MetaInfo.read(metaInfoFile);
+        if (found == null || !found.matchesConfiguration()) {
+            logAndDisplay(currentPeerID + " waits for the metainfo of " + ConfigSettings.fileName);
+        }
+        while (found == null || !found.matchesConfiguration()) {
+            if (System.currentTimeMillis() >= deadline) {
+                String reason = found == null ? "no metainfo was found at " + metaInfoFile.getAbsolutePath()
+                        : metaInfoFile.getAbsolutePath() + " is computed for FileSize " + found.getFileSize()
+                        + ", PieceSize " + found.getPieceSize() + " and PieceDigest " + found.getDigestAlgorithm()
+                        + " but Common.cfg has FileSize " + ConfigSettings.fileSize + ", PieceSize "
+                        + ConfigSettings.pieceSize + " and PieceDigest " + ConfigSettings.pieceDigest;
+                logAndDisplay(currentPeerID + " ERROR cannot verify pieces of " + ConfigSettings.fileName
+                        + " after waiting " + ConfigSettings.metaInfoTimeout + " ms: " + reason
+                        + ". Copy the metainfo of the seed to the working directory or set PieceDigest none");
+                throw new IOException("no metainfo matching Common.cfg");
+            }
+            Thread.sleep(100);
+            found = MetaInfo.read(metaInfoFile);
+        }
+        metaInfo = found;
+        if (bitFieldMsg.getNumPiecesPresent() > 0) {
+            int corruptPieces = pieceVerifier.verifyPieces(bitFieldMsg, metaInfo);
+            if (corruptPieces > 0) {
+                logAndDisplay(currentPeerID + " found " + corruptPieces + " restored pieces corrupt, they will be downloaded again");
+            }
+        }
+    }
+
+    /**
+     * This method is used to open the shared file for the lifetime of the process.
+     * @throws IOException if the file cannot be opened
+     */
+    private static void initializePieceStore() throws IOException {
+        pieceStore = PieceStore.open(new File(currentPeerID, ConfigSettings.fileName), !initialFilePeer);
+        diskWriter = new DiskWriter(pieceStore);
+        diskWriter.start();
+    }
+
+    /**
+     * This method is used to forget a remote peer whose connection is closed. Its pieces no longer count towards
+     * the availability of the pieces and its requests in flight are released to the other peers.
+     * @param remotePeerInfo - the remote peer
+     * @param connection - the closed connection
+     */
+    public static void removePeerConnection(RemotePeerInfo remotePeerInfo, PeerConnection connection) {
+        if (!peerTable.removeConnection(remotePeerInfo.getIndex(), connection))
+            return;
+        piecePicker.removePeer(remotePeerInfo);
+        piecePicker.release(remotePeerInfo, remotePeerInfo.getRequestWindow().clear());
+        remotePeerInfo.clearPendingRequests();
+        RequestTimeoutMonitor.requestReleasedPieces(remotePeerInfo);
     }
 
     /**
@@ -131,28 +302,46 @@ public class peerProcess {
      * @param process - peerprrocess to start threads into
      */
     public static void startFileServerReceiverThreads(peerProcess process) {
-        if (initialFilePeer) {
+        if (ConfigSettings.transportMode.equalsIgnoreCase("reactor")) {
+            startReactor();
+        } else if (initialFilePeer) {
             //Peer having file initially. starting server thread
             startFileServerThread(process);
         } else {
-            //if not a peer which has file initially. Create an empty new file. Starting serving and listening threads
-            createNewFile();
+            //if not a peer which has file initially. Starting serving and listening threads
             startFileReceiverThreads(process);
             startFileServerThread(process);
         }
     }
 
+    /**
+     * This method is used to start the non-blocking transport. It connects to the peers started before the current
+     * peer and accepts connections from the others on the selector threads instead of a thread per connection.
+     */
+    public static void startReactor() {
+        try {
+            peerReactor = new PeerReactor(ConfigSettings.selectorThreads, currentPeerID);
+            peerReactor.start();
+            for (RemotePeerInfo remotePeerDetails : peerTable.getPeers()) {
+                if (connectsTo(remotePeerDetails)) {
+                    peerReactor.connect(remotePeerDetails.getHostAddress(), Integer.parseInt(remotePeerDetails.getPort()));
+                }
+            }
+            peerReactor.listen(peerPort);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(0);
+        }
+    }
+
     /**
      * This method is used to start file receiver threads
      * @param process - peerprrocess to start threads into
      */
     public static void startFileReceiverThreads(peerProcess process) {
-        Set<String> remotePeerDetailsKeys = remotePeerInfoMap.keySet();
-        for (String peerID : remotePeerDetailsKeys) {
-            RemotePeerInfo remotePeerDetails = remotePeerInfoMap.get(peerID);
-
-            if (process.peerIdx > remotePeerDetails.getIndex()) {
-                Thread tempThread = new Thread(new PeerMessageHandler(
+        for (RemotePeerInfo remotePeerDetails : peerTable.getPeers()) {
+            if (connectsTo(remotePeerDetails)) {
+                Thread tempThread = PeerUtils.newConnectionThread(new PeerMessageHandler(
                         remotePeerDetails.getHostAddress(), Integer
                         .parseInt(remotePeerDetails.getPort()), 1,
                         currentPeerID));
@@ -162,6 +351,19 @@ public class peerProcess {
         }
     }
 
+    /**
+     * This method is used to decide whether the current peer opens the connection to a remote peer. A peer connects
+     * to the peers started before it. A peer resuming an earlier download connects to the peers started after it as
+     * well, as their connections to the earlier run are gone and they learn its pieces and completion from its bitfield.
+     * @param remotePeerDetails - the remote peer
+     * @return true if the current peer connects to the remote peer
+     */
+    private static boolean connectsTo(RemotePeerInfo remotePeerDetails) {
+        if (remotePeerDetails.getIndex() == currentPeerIndex)
+            return false;
+        return currentPeerIndex > remotePeerDetails.getIndex() || resumedDownload;
+    }
+
     /**
      * This method is used to start file server thread
      * @param process - peerprrocess to start thread into
@@ -170,7 +372,7 @@ public class peerProcess {
         try {
             //Start a new file server thread
             process.serverSocket = new ServerSocket(peerPort);
-            process.serverThread = new Thread(new PeerServerHandler(process.serverSocket, currentPeerID));
+            process.serverThread = PeerUtils.newConnectionThread(new PeerServerHandler(process.serverSocket, currentPeerID));
             process.serverThread.start();
         } catch (SocketTimeoutException e) {
             logAndDisplay(currentPeerID + " Socket Gets Timed out Error - " + e.getMessage());
@@ -183,18 +385,12 @@ public class peerProcess {
     }
 
     private static void setPeerDetails() {
-        Set<String> peerIds = remotePeerInfoMap.keySet();
-        for (String id : peerIds) {
-            RemotePeerInfo details = remotePeerInfoMap.get(id);
-            if (details.getPeerId().equals(currentPeerID)) {
-                peerPort = Integer.parseInt(details.getPort());
-                peerIdx = details.getIndex();
-                if (details.getHasFile() == 1) {
-                    initialFilePeer = true;
-                    hasFile = details.getHasFile();
-                    break;
-                }
-            }
+        RemotePeerInfo details = peerTable.findPeer(currentPeerID);
+        peerPort = Integer.parseInt(details.getPort());
+        currentPeerIndex = details.getIndex();
+        if (details.getHasFile() == 1) {
+            initialFilePeer = true;
+            hasFile = details.getHasFile();
         }
     }
 
@@ -227,41 +423,71 @@ public class peerProcess {
         );
     }
 
+    /**
+     * This method is used to start checking the deadlines of the piece requests in flight
+     */
+    public static void monitorRequestTimeouts() {
+        requestTimeoutTimer = new Timer();
+        requestTimeoutTimer.schedule(new RequestTimeoutMonitor(),
+                RequestTimeoutMonitor.CHECK_INTERVAL_MILLIS,
+                RequestTimeoutMonitor.CHECK_INTERVAL_MILLIS);
+    }
+
+    /**
+     * This method starts processing of received messages. In actor mode every remote peer is processed
+     * by its own serialized actor on a shared worker pool, otherwise a single thread processes all the peers.
+     * @param process - peerprrocess to start threads into
+     */
     private static void startMessageHandler(peerProcess process) {
-        messageHandlerThread = new Thread(new PeerMessageProcessor(currentPeerID));
-        messageHandlerThread.start();
+        PeerMessageProcessor messageProcessor = new PeerMessageProcessor(currentPeerID);
+        if (ConfigSettings.messageExecutionMode.equalsIgnoreCase("actor")) {
+            AtomicInteger workerCount = new AtomicInteger();
+            messageWorkerPool = Executors.newFixedThreadPool(ConfigSettings.messageWorkerThreads, runnable -> {
+                Thread worker = new Thread(runnable, "peer-actor-" + workerCount.incrementAndGet());
+                worker.setDaemon(true);
+                return worker;
+            });
+            inboundMsgPipeline.startActors(messageWorkerPool, messageProcessor::processMessage);
+        } else {
+            messageHandlerThread = new Thread(messageProcessor);
+            messageHandlerThread.start();
+        }
     }
 
     /**
-     * This method is used to create empty file with size 'CommonConfiguration.fileSize' and set zero bits into it
+     * This method is used to give the file the pieces are downloaded into its final size 'CommonConfiguration.fileSize'.
+     * The size is set in one step without writing any content, so the file system allocates the file sparsely and
+     * the blocks are only allocated as pieces are written. A file of the right size left by an earlier run is kept.
+     * @return true if the file of an earlier run has been kept
      */
-    public static void createNewFile() {
+    public static boolean preallocateFile() {
         try {
             File dir = new File(currentPeerID);
             dir.mkdir();
 
             File newfile = new File(currentPeerID, ConfigSettings.fileName);
-            OutputStream os = new FileOutputStream(newfile, true);
-            byte b = 0;
-
-            for (int i = 0; i < ConfigSettings.fileSize; i++)
-                os.write(b);
-            os.close();
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(newfile, "rw")) {
+                if (randomAccessFile.length() == ConfigSettings.fileSize) {
+                    logAndDisplay(currentPeerID + " reuses the existing file " + ConfigSettings.fileName);
+                    return true;
+                }
+                //a longer file is truncated, a shorter one is extended by a hole which reads as zeros
+                randomAccessFile.setLength(ConfigSettings.fileSize);
+            }
         } catch (Exception e) {
             logAndDisplay(currentPeerID + " ERROR in creating the file : " + e.getMessage());
             e.printStackTrace();
         }
+        return false;
     }
 
     /**
      * This method is used to set preferred neighbors of a peer
      */
     public static void setPreferredNeighbours() {
-        Set<String> remotePeerIDs = remotePeerInfoMap.keySet();
-        for (String peerID : remotePeerIDs) {
-            RemotePeerInfo remotePeerDetails = remotePeerInfoMap.get(peerID);
-            if (remotePeerDetails != null && !peerID.equals(currentPeerID)) {
-                preferredNeighboursMap.put(peerID, remotePeerDetails);
+        for (RemotePeerInfo remotePeerDetails : peerTable.getPeers()) {
+            if (!remotePeerDetails.getPeerId().equals(currentPeerID)) {
+                peerTable.getPreferredNeighbors().add(remotePeerDetails.getIndex());
             }
         }
     }
@@ -269,31 +495,30 @@ public class peerProcess {
     public static void loadPeerDetails() throws IOException {
         try {
             List<String> lines = Files.readAllLines(Paths.get("PeerInfo.cfg"));
+            List<RemotePeerInfo> peers = new ArrayList<>();
             for (int i = 0; i < lines.size(); i++) {
                 String[] properties = lines.get(i).split("\\s+");
-                remotePeerInfoMap.put(properties[0], new RemotePeerInfo(properties[0], properties[1], properties[2],
+                //the line of a peer is its slot in the peer table
+                peers.add(new RemotePeerInfo(properties[0], properties[1], properties[2],
                         Integer.parseInt(properties[3]), i));
             }
+            peerTable = new PeerTable(peers);
         } catch (IOException e) {
             throw e;
         }
     }
 
+    /**
+     * This method is used to check whether every peer of the swarm has the complete file. Completion is tracked in
+     * memory from the DOWNLOADED messages and bitfields of the peers, PeerInfo.cfg is only read at startup.
+     * @return true if all peers have the complete file
+     */
     private static boolean checkDownloadCompletion() {
-        boolean downloadStatus = true;
-        try {
-            List<String> lines = Files.readAllLines(Paths.get("PeerInfo.cfg"));
-            for (String line : lines) {
-                String[] properties = line.split("\\s+");
-                if (Integer.parseInt(properties[3]) == 0) {
-                    downloadStatus = false;
-                    break;
-                }
-            }
-        } catch (IOException e) {
-            downloadStatus = false;
+        for (RemotePeerInfo remotePeerInfo : peerTable.getPeers()) {
+            if (remotePeerInfo.getIsComplete() == 0)
+                return false;
         }
-        return downloadStatus;
+        return true;
     }
 
     /**
@@ -317,6 +542,36 @@ public class peerProcess {
                     ConfigSettings.fileSize = Integer.parseInt(properties[1]);
                 } else if (properties[0].equalsIgnoreCase("PieceSize")) {
                     ConfigSettings.pieceSize = Integer.parseInt(properties[1]);
+                } else if (properties[0].equalsIgnoreCase("InboundQueueCapacity")) {
+                    ConfigSettings.inboundQueueCapacity = Integer.parseInt(properties[1]);
+                } else if (properties[0].equalsIgnoreCase("MessageExecutionMode")) {
+                    ConfigSettings.messageExecutionMode = properties[1];
+                } else if (properties[0].equalsIgnoreCase("MessageWorkerThreads")) {
+                    ConfigSettings.messageWorkerThreads = Integer.parseInt(properties[1]);
+                } else if (properties[0].equalsIgnoreCase("TransportMode")) {
+                    ConfigSettings.transportMode = properties[1];
+                } else if (properties[0].equalsIgnoreCase("SelectorThreads")) {
+                    ConfigSettings.selectorThreads = Integer.parseInt(properties[1]);
+                } else if (properties[0].equalsIgnoreCase("ConnectionThreadMode")) {
+                    ConfigSettings.connectionThreadMode = properties[1];
+                } else if (properties[0].equalsIgnoreCase("RequestWindowSize")) {
+                    ConfigSettings.requestWindowSize = Integer.parseInt(properties[1]);
+                } else if (properties[0].equalsIgnoreCase("RequestTimeout")) {
+                    ConfigSettings.requestTimeout = Integer.parseInt(properties[1]);
+                } else if (properties[0].equalsIgnoreCase("EndgameThreshold")) {
+                    ConfigSettings.endgameThreshold = Integer.parseInt(properties[1]);
+                } else if (properties[0].equalsIgnoreCase("BlockSize")) {
+                    ConfigSettings.blockSize = Integer.parseInt(properties[1]);
+                } else if (properties[0].equalsIgnoreCase("StorageMode")) {
+                    ConfigSettings.storageMode = properties[1];
+                } else if (properties[0].equalsIgnoreCase("DiskWriteQueueSize")) {
+                    ConfigSettings.diskWriteQueueSize = Integer.parseInt(properties[1]);
+                } else if (properties[0].equalsIgnoreCase("FsyncPolicy")) {
+                    ConfigSettings.fsyncPolicy = properties[1];
+                } else if (properties[0].equalsIgnoreCase("PieceDigest")) {
+                    ConfigSettings.pieceDigest = properties[1];
+                } else if (properties[0].equalsIgnoreCase("MetaInfoTimeout")) {
+                    ConfigSettings.metaInfoTimeout = Integer.parseInt(properties[1]);
                 }
             }
         } catch (IOException e) {
@@ -328,24 +583,4 @@ public class peerProcess {
     private static void logAndDisplay(String message) {
         LoggingHelper.logAndDisplay(message);
     }
-
-    /**
-     * This method reads PeerInfo.cfg file and updates peers in remotePeerDetailsMap
-     */
-    public static void updateOtherPeerDetails() {
-        try {
-            List<String> lines = Files.readAllLines(Paths.get("PeerInfo.cfg"));
-            for (int i = 0; i < lines.size(); i++) {
-                String[] properties = lines.get(i).split("\\s+");
-                String peerID = properties[0];
-                int isCompleted = Integer.parseInt(properties[3]);
-                if (isCompleted == 1) {
-                    remotePeerInfoMap.get(peerID).setIsComplete(1);
-                    remotePeerInfoMap.get(peerID).setIsInterested(0);
-                    remotePeerInfoMap.get(peerID).setIsChoked(0);
-                }
-            }
-        } catch (IOException e) {
-        }
-    }
 }